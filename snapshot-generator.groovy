@@ -0,0 +1,47 @@
+import com.blueconic.browscap.BrowsCapField
+import com.blueconic.browscap.ParserOptions
+import com.blueconic.browscap.UserAgentService
+
+import java.util.zip.GZIPOutputStream
+
+/*
+ * Writes the snapshot of the bundled rules next to the compiled classes, so it's packaged in the jar. It's compressed,
+ * as the uncompressed snapshot is several times larger than the rest of the jar.
+ */
+def classes = new File(project.build.outputDirectory)
+def rulesZip = new File(classes, UserAgentService.getBundledCsvFileName())
+def snapshot = new File(classes, UserAgentService.getBundledSnapshotFileName())
+if (rulesZip.isFile()) {
+    if (isOutdated(snapshot, classes)) {
+        log.info "Writing the snapshot of " + rulesZip.getName() + " for faster startup"
+        def fields = BrowsCapField.values().findAll { it.isDefault() }
+        def uncompressed = new File(project.build.directory, snapshot.getName() - ".gz")
+        new UserAgentService(rulesZip.getPath()).writeSnapshot(fields, new ParserOptions(), uncompressed.toPath())
+        uncompressed.withInputStream { input ->
+            new GZIPOutputStream(new FileOutputStream(snapshot), 1 << 16).withStream { output -> output << input }
+        }
+        uncompressed.delete()
+    }
+} else if (snapshot.isFile()) {
+    snapshot.delete()
+}
+
+/**
+ * Checks whether the snapshot should be written again, as it depends on both the rules and the classes writing it.
+ *
+ * @param snapshot The snapshot file
+ * @param classes The directory of the compiled classes and resources
+ * @return true if the snapshot is missing or older than any other file in the directory
+ */
+def isOutdated(File snapshot, File classes) {
+    if (!snapshot.isFile()) {
+        return true
+    }
+    boolean result = false
+    classes.eachFileRecurse { file ->
+        if (file.isFile() && file != snapshot && file.lastModified() > snapshot.lastModified()) {
+            result = true
+        }
+    }
+    return result
+}
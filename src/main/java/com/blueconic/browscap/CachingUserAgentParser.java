@@ -0,0 +1,405 @@
+package com.blueconic.browscap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parser which remembers the capabilities of recently parsed useragents. The cache is divided in segments with their
+ * own lock, selected by the hash of the useragent. Each segment evicts with the W-TinyLFU policy: new useragents enter
+ * a small window, and only move into the main part of the segment if they are requested more often than the useragent
+ * they'd replace. A scan of unique useragents therefore doesn't flush the frequently requested ones.
+ * <p>
+ * The capabilities of the rules are shared by the parser, so an entry only holds the useragent and a reference.
+ * </p>
+ */
+public class CachingUserAgentParser implements UserAgentParser {
+
+    // The maximum number of segments, more segments reduce the contention between threads
+    private static final int MAX_SEGMENTS = 16;
+
+    private final UserAgentParser myParser;
+    private final Segment[] mySegments;
+
+    private final LongAdder myHits = new LongAdder();
+    private final LongAdder myMisses = new LongAdder();
+    private final LongAdder myEvictions = new LongAdder();
+
+    /**
+     * Creates a cache for a parser, limited by the number of entries.
+     * @param parser The parser to cache the results of
+     * @param maximumSize The maximum number of useragents in the cache, at least 1
+     */
+    public CachingUserAgentParser(final UserAgentParser parser, final int maximumSize) {
+        this(parser, maximumSize, Long.MAX_VALUE);
+    }
+
+    /**
+     * Creates a cache for a parser, limited by the number of entries and their weight. The weight of an entry is the
+     * length of its useragent, so it approximates the memory used by the cache.
+     * @param parser The parser to cache the results of
+     * @param maximumSize The maximum number of useragents in the cache, at least 1
+     * @param maximumWeight The maximum total length of the useragents in the cache, at least 1
+     */
+    public CachingUserAgentParser(final UserAgentParser parser, final int maximumSize, final long maximumWeight) {
+        if (parser == null) {
+            throw new IllegalArgumentException("The parser should be specified");
+        }
+        if (maximumSize < 1 || maximumWeight < 1) {
+            throw new IllegalArgumentException("The maximum size and weight should be at least 1");
+        }
+        myParser = parser;
+
+        // Both limits are divided over the segments
+        final int nrOfSegments = Integer.highestOneBit(Math.min(MAX_SEGMENTS, maximumSize));
+        mySegments = new Segment[nrOfSegments];
+        for (int i = 0; i < nrOfSegments; i++) {
+            final int size = maximumSize / nrOfSegments + (i < maximumSize % nrOfSegments ? 1 : 0);
+            final long weight = maximumWeight / nrOfSegments + (i < maximumWeight % nrOfSegments ? 1 : 0);
+            mySegments[i] = new Segment(size, Math.max(1, weight));
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Capabilities parse(final String userAgent) {
+        if (userAgent == null) {
+            return myParser.parse(null);
+        }
+
+        final int hash = spread(userAgent.hashCode());
+        final Segment segment = mySegments[hash & mySegments.length - 1];
+        final Capabilities cached = segment.get(userAgent, hash);
+        if (cached != null) {
+            myHits.increment();
+            return cached;
+        }
+
+        // The parser is called outside of the lock, so concurrent misses for the same useragent may both parse it
+        myMisses.increment();
+        final Capabilities result = myParser.parse(userAgent);
+        if (result != null) {
+            myEvictions.add(segment.put(userAgent, hash, result));
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int parseToId(final String userAgent) {
+        return myParser.parseToId(userAgent);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Capabilities byId(final int id) {
+        return myParser.byId(id);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNrOfCapabilities() {
+        return myParser.getNrOfCapabilities();
+    }
+
+    /**
+     * Returns the number of lookups which were answered by the cache.
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return myHits.sum();
+    }
+
+    /**
+     * Returns the number of lookups which were passed to the parser.
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return myMisses.sum();
+    }
+
+    /**
+     * Returns the number of entries which were removed to respect the limits, including new useragents which weren't
+     * admitted.
+     * @return the number of evictions
+     */
+    public long getEvictionCount() {
+        return myEvictions.sum();
+    }
+
+    /**
+     * Returns the number of useragents in the cache.
+     * @return the number of entries
+     */
+    public int getSize() {
+        int result = 0;
+        for (final Segment segment : mySegments) {
+            result += segment.getSize();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the total length of the useragents in the cache.
+     * @return the weight of the entries
+     */
+    public long getWeight() {
+        long result = 0;
+        for (final Segment segment : mySegments) {
+            result += segment.getWeight();
+        }
+        return result;
+    }
+
+    /**
+     * Removes all entries from the cache. The counters and the frequencies of the useragents are kept.
+     */
+    public void clear() {
+        for (final Segment segment : mySegments) {
+            segment.clear();
+        }
+    }
+
+    private static int spread(final int hash) {
+        return (hash ^ hash >>> 16) * 0x45D9F3B;
+    }
+
+    /**
+     * Part of the cache with its own lock. The entries are kept in three queues, ordered from the least to the most
+     * recently used: the window for new entries, and the probation and protected queues of the main part. An entry in
+     * probation which is requested again moves to the protected queue.
+     */
+    static final class Segment {
+
+        // The queues of the entries
+        static final int WINDOW = 0;
+        static final int PROBATION = 1;
+        static final int PROTECTED = 2;
+
+        private final Map<String, Node> myNodes = new HashMap<>();
+        private final Node[] myQueues = {new Node(), new Node(), new Node()};
+        private final int[] mySizes = new int[3];
+        private final FrequencySketch mySketch;
+
+        private final int myMaximumSize;
+        private final int myMaximumWindowSize;
+        private final int myMaximumProtectedSize;
+        private final long myMaximumWeight;
+        private long myWeight;
+
+        Segment(final int maximumSize, final long maximumWeight) {
+            myMaximumSize = maximumSize;
+            myMaximumWeight = maximumWeight;
+
+            // The proportions of the original W-TinyLFU policy, a window of 1% and a protected queue of 80%
+            myMaximumWindowSize = Math.max(1, maximumSize / 100);
+            myMaximumProtectedSize = (maximumSize - myMaximumWindowSize) * 4 / 5;
+            mySketch = new FrequencySketch(maximumSize);
+        }
+
+        synchronized Capabilities get(final String key, final int hash) {
+            mySketch.increment(hash);
+            final Node node = myNodes.get(key);
+            if (node == null) {
+                return null;
+            }
+
+            if (node.myQueue == PROBATION) {
+                move(node, PROTECTED);
+
+                // The least recently used protected entry gets another chance in probation
+                if (mySizes[PROTECTED] > myMaximumProtectedSize) {
+                    move(myQueues[PROTECTED].myNext, PROBATION);
+                }
+            } else {
+                move(node, node.myQueue);
+            }
+            return node.myValue;
+        }
+
+        /**
+         * Adds an entry and removes entries until the segment respects its limits.
+         * @return the number of removed entries
+         */
+        synchronized int put(final String key, final int hash, final Capabilities value) {
+            if (key.length() > myMaximumWeight || myNodes.containsKey(key)) {
+                return 0;
+            }
+
+            final Node node = new Node();
+            node.myKey = key;
+            node.myHash = hash;
+            node.myValue = value;
+            myNodes.put(key, node);
+            myWeight += key.length();
+            link(node, WINDOW);
+
+            // The least recently used entry of the window competes with the victim of the main part
+            int result = 0;
+            if (mySizes[WINDOW] > myMaximumWindowSize) {
+                final Node candidate = myQueues[WINDOW].myNext;
+                if (myNodes.size() <= myMaximumSize) {
+                    move(candidate, PROBATION);
+                } else {
+                    final Node victim = getVictim();
+                    if (victim != null && mySketch.frequency(candidate.myHash) > mySketch.frequency(victim.myHash)) {
+                        move(candidate, PROBATION);
+                        remove(victim);
+                    } else {
+                        remove(candidate);
+                    }
+                    result++;
+                }
+            }
+
+            // The weight is reduced by removing the least recently used entries of the main part first
+            while (myNodes.size() > myMaximumSize || myWeight > myMaximumWeight) {
+                final Node victim = getVictim();
+                remove(victim == null ? myQueues[WINDOW].myNext : victim);
+                result++;
+            }
+            return result;
+        }
+
+        private Node getVictim() {
+            if (mySizes[PROBATION] > 0) {
+                return myQueues[PROBATION].myNext;
+            }
+            return mySizes[PROTECTED] > 0 ? myQueues[PROTECTED].myNext : null;
+        }
+
+        synchronized int getSize() {
+            return myNodes.size();
+        }
+
+        synchronized long getWeight() {
+            return myWeight;
+        }
+
+        synchronized void clear() {
+            myNodes.clear();
+            for (int i = 0; i < myQueues.length; i++) {
+                myQueues[i].myNext = myQueues[i];
+                myQueues[i].myPrevious = myQueues[i];
+                mySizes[i] = 0;
+            }
+            myWeight = 0;
+        }
+
+        private void remove(final Node node) {
+            unlink(node);
+            myNodes.remove(node.myKey);
+            myWeight -= node.myKey.length();
+        }
+
+        private void move(final Node node, final int queue) {
+            unlink(node);
+            link(node, queue);
+        }
+
+        // Adds a node as the most recently used entry of a queue
+        private void link(final Node node, final int queue) {
+            final Node head = myQueues[queue];
+            node.myQueue = queue;
+            node.myPrevious = head.myPrevious;
+            node.myNext = head;
+            head.myPrevious.myNext = node;
+            head.myPrevious = node;
+            mySizes[queue]++;
+        }
+
+        private void unlink(final Node node) {
+            node.myPrevious.myNext = node.myNext;
+            node.myNext.myPrevious = node.myPrevious;
+            mySizes[node.myQueue]--;
+        }
+    }
+
+    /**
+     * Entry of a segment, or the head of a circular queue.
+     */
+    static final class Node {
+        private String myKey;
+        private int myHash;
+        private Capabilities myValue;
+        private int myQueue;
+        private Node myPrevious = this;
+        private Node myNext = this;
+    }
+
+    /**
+     * Count-min sketch estimating how often useragents were requested, with four 4-bit counters per useragent. The
+     * counters are halved periodically, so useragents which were popular a long time ago are forgotten.
+     */
+    static final class FrequencySketch {
+
+        private static final long[] SEEDS = {0x97CB3127L, 0xB492B66FL, 0x9AE16A3BL, 0xCBF29CE4L};
+        private static final long HALF_MASK = 0x7777777777777777L;
+        private static final int MAX_COUNT = 15;
+
+        // Sixteen counters per value
+        private final long[] myTable;
+        private final int mySamplePeriod;
+        private int myAdditions;
+
+        FrequencySketch(final int maximumSize) {
+            myTable = new long[Integer.highestOneBit(Math.max(2, maximumSize) * 2 - 1)];
+            mySamplePeriod = 10 * Math.max(1, maximumSize);
+        }
+
+        int frequency(final int hash) {
+            int result = MAX_COUNT;
+            for (final long seed : SEEDS) {
+                result = Math.min(result, getCount(mix(hash, seed)));
+            }
+            return result;
+        }
+
+        void increment(final int hash) {
+            final int frequency = frequency(hash);
+            if (frequency == MAX_COUNT) {
+                return;
+            }
+
+            // Only the lowest counters are incremented, which reduces the overestimation by collisions
+            for (final long seed : SEEDS) {
+                final long mixed = mix(hash, seed);
+                if (getCount(mixed) == frequency) {
+                    myTable[getIndex(mixed)] += 1L << getShift(mixed);
+                }
+            }
+            if (++myAdditions == mySamplePeriod) {
+                for (int i = 0; i < myTable.length; i++) {
+                    myTable[i] = myTable[i] >>> 1 & HALF_MASK;
+                }
+                myAdditions /= 2;
+            }
+        }
+
+        private static long mix(final int hash, final long seed) {
+            return (hash + seed) * seed;
+        }
+
+        private int getCount(final long mixed) {
+            return (int) (myTable[getIndex(mixed)] >>> getShift(mixed)) & MAX_COUNT;
+        }
+
+        // The long of the value, selected by the high bits of the mixed hash
+        private int getIndex(final long mixed) {
+            return (int) (mixed >>> 32) & myTable.length - 1;
+        }
+
+        // The counter of the value within the long
+        private static int getShift(final long mixed) {
+            return (int) (mixed >>> 24 & 15) << 2;
+        }
+    }
+}
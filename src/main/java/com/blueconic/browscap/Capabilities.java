@@ -49,8 +49,10 @@ public interface Capabilities {
     String getValue(BrowsCapField field);
 
     /**
-     * Returns the Map of values with the fields passed to the parser while loading
-     * @return the map of values
+     * Returns the Map of values with the fields passed to the parser while loading. The map is created once and shared
+     * by all callers, so it can't be modified. Versions up to 1.5.1 returned a modifiable copy on every call; callers
+     * that change the values should copy the map first, e.g. with <code>new EnumMap&lt;&gt;(getValues())</code>.
+     * @return the unmodifiable map of values
      */
     Map<BrowsCapField, String> getValues();
 }
\ No newline at end of file
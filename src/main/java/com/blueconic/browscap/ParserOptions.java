@@ -0,0 +1,158 @@
+package com.blueconic.browscap;
+
+import java.util.function.Consumer;
+
+/**
+ * Options for tuning the creation of a user agent parser. The defaults are suitable for most use cases.
+ */
+public class ParserOptions {
+
+    /**
+     * The strategies for finding the candidate rules for a useragent.
+     */
+    public enum Engine {
+        /** Discards the rules requiring substrings which are missing in the useragent. */
+        FILTERS,
+        /** Only checks the rules indexed under substrings which are present in the useragent. */
+        INDEX
+    }
+
+    // The default number of filters to select from the rules
+    public static final int DEFAULT_NR_OF_FILTERS = 80;
+
+    private int myNrOfFilters = DEFAULT_NR_OF_FILTERS;
+    private Engine myEngine = Engine.FILTERS;
+    private Consumer<String> myReporter;
+    private boolean myIsReuseContexts;
+    private int mySkeletonCacheSize;
+    private int myNrOfLoadThreads = 1;
+
+    /**
+     * Returns the strategy for finding the candidate rules for a useragent.
+     * @return the engine
+     */
+    public Engine getEngine() {
+        return myEngine;
+    }
+
+    /**
+     * Sets the strategy for finding the candidate rules for a useragent.
+     * @param engine The engine
+     * @return this instance
+     */
+    public ParserOptions setEngine(final Engine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("The engine should be specified");
+        }
+        myEngine = engine;
+        return this;
+    }
+
+    /**
+     * Returns the number of filters the parser selects for discarding irrelevant rules.
+     * @return the number of filters
+     */
+    public int getNrOfFilters() {
+        return myNrOfFilters;
+    }
+
+    /**
+     * Sets the number of filters the parser selects for discarding irrelevant rules. More filters discard more rules
+     * per lookup, but each filter adds a fixed cost to every lookup.
+     * @param nrOfFilters The number of filters, at least 0
+     * @return this instance
+     */
+    public ParserOptions setNrOfFilters(final int nrOfFilters) {
+        if (nrOfFilters < 0) {
+            throw new IllegalArgumentException("The number of filters should be at least 0");
+        }
+        myNrOfFilters = nrOfFilters;
+        return this;
+    }
+
+    /**
+     * Indicates whether the parser reuses the scratch state for parsing per thread.
+     * @return <code>true</code> if the state is reused, <code>false</code> otherwise
+     */
+    public boolean isReuseContexts() {
+        return myIsReuseContexts;
+    }
+
+    /**
+     * Sets whether the parser reuses the scratch state for parsing per thread. Parsing then doesn't allocate memory
+     * once the state of a thread has grown to its final size, at the cost of keeping that state for every thread which
+     * used the parser.
+     * @param reuseContexts Whether the state should be reused
+     * @return this instance
+     */
+    public ParserOptions setReuseContexts(final boolean reuseContexts) {
+        myIsReuseContexts = reuseContexts;
+        return this;
+    }
+
+    /**
+     * Returns the number of useragent skeletons for which the parser remembers the matching rule.
+     * @return the size of the skeleton cache, 0 if disabled
+     */
+    public int getSkeletonCacheSize() {
+        return mySkeletonCacheSize;
+    }
+
+    /**
+     * Sets the number of useragent skeletons for which the parser remembers the matching rule. The skeleton of a
+     * useragent has its runs of digits masked, so useragents differing only in version or build numbers share it. The
+     * remembered rule is verified for every useragent, and only the rules with a higher priority are searched when it
+     * still matches, so the results are the same as without the cache.
+     * @param skeletonCacheSize The size of the cache, or 0 to disable it
+     * @return this instance
+     */
+    public ParserOptions setSkeletonCacheSize(final int skeletonCacheSize) {
+        if (skeletonCacheSize < 0) {
+            throw new IllegalArgumentException("The size of the skeleton cache should be at least 0");
+        }
+        mySkeletonCacheSize = skeletonCacheSize;
+        return this;
+    }
+
+    /**
+     * Returns the number of threads which parse the rows of the CSV file.
+     * @return the number of threads, 1 if the rows are parsed by the calling thread
+     */
+    public int getNrOfLoadThreads() {
+        return myNrOfLoadThreads;
+    }
+
+    /**
+     * Sets the number of threads which parse the rows of the CSV file. With more than 1 thread, the calling thread
+     * splits the file into batches of rows and creates the rules in the order of the file, so the parser is the same
+     * as when it's created by a single thread. Splitting the file requires the quotes in the values to be escaped by
+     * doubling them, as BrowsCap does.
+     * @param nrOfLoadThreads The number of threads, at least 1
+     * @return this instance
+     */
+    public ParserOptions setNrOfLoadThreads(final int nrOfLoadThreads) {
+        if (nrOfLoadThreads < 1) {
+            throw new IllegalArgumentException("The number of load threads should be at least 1");
+        }
+        myNrOfLoadThreads = nrOfLoadThreads;
+        return this;
+    }
+
+    /**
+     * Returns the receiver of statistics about the created parser.
+     * @return the reporter, potentially <code>null</code>
+     */
+    public Consumer<String> getReporter() {
+        return myReporter;
+    }
+
+    /**
+     * Sets the receiver of statistics about the created parser, e.g. how many rules each selected filter discards.
+     * @param reporter The reporter, potentially <code>null</code>
+     * @return this instance
+     */
+    public ParserOptions setReporter(final Consumer<String> reporter) {
+        myReporter = reporter;
+        return this;
+    }
+}
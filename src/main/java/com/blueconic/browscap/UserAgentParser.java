@@ -1,5 +1,7 @@
 package com.blueconic.browscap;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
 public interface UserAgentParser {
 
     /**
@@ -8,4 +10,57 @@ public interface UserAgentParser {
      * @return The capabilities of the best matching rule
      */
     Capabilities parse(String userAgent);
+
+    /**
+     * Parses a User-Agent header value into a Capabilities object, without requiring a String, e.g. for the header
+     * values of an HTTP library.
+     * @param userAgent The user agent
+     * @return The capabilities of the best matching rule
+     */
+    default Capabilities parse(final CharSequence userAgent) {
+        return parse(userAgent == null ? null : userAgent.toString());
+    }
+
+    /**
+     * Parses an ISO-8859-1 encoded User-Agent header value into a Capabilities object, e.g. for the raw bytes of an
+     * HTTP request.
+     * @param buffer The buffer with the user agent
+     * @param offset The offset of the user agent in the buffer
+     * @param length The length of the user agent
+     * @return The capabilities of the best matching rule
+     */
+    default Capabilities parse(final byte[] buffer, final int offset, final int length) {
+        return parse(new String(buffer, offset, length, ISO_8859_1));
+    }
+
+    /**
+     * Parses a User-Agent header value into the id of its Capabilities object. The ids are dense, from 0 up to the
+     * number of distinct capabilities, and are only meaningful for parsers of the same BrowsCap file and fields.
+     * @param userAgent The user agent
+     * @return The id of the capabilities of the best matching rule
+     * @throws UnsupportedOperationException if the parser doesn't number its capabilities
+     */
+    default int parseToId(final String userAgent) {
+        throw new UnsupportedOperationException("The parser doesn't number its capabilities");
+    }
+
+    /**
+     * Returns the Capabilities object with the specified id.
+     * @param id The id, as returned by {@link #parseToId(String)}
+     * @return The capabilities
+     * @throws IllegalArgumentException if there are no capabilities with the id
+     * @throws UnsupportedOperationException if the parser doesn't number its capabilities
+     */
+    default Capabilities byId(final int id) {
+        throw new UnsupportedOperationException("The parser doesn't number its capabilities");
+    }
+
+    /**
+     * Returns the number of distinct Capabilities objects, so the ids range from 0 up to this number.
+     * @return The number of capabilities
+     * @throws UnsupportedOperationException if the parser doesn't number its capabilities
+     */
+    default int getNrOfCapabilities() {
+        throw new UnsupportedOperationException("The parser doesn't number its capabilities");
+    }
 }
@@ -3,14 +3,24 @@ package com.blueconic.browscap;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.stream.Collectors.toSet;
 
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Collection;
 import java.util.Set;
 import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -55,10 +65,7 @@ public class UserAgentService {
     public UserAgentParser loadParser() throws IOException, ParseException {
 
         // Use all default fields
-        final Set<BrowsCapField> defaultFields =
-                Stream.of(BrowsCapField.values()).filter(BrowsCapField::isDefault).collect(toSet());
-
-        return createParserWithFields(defaultFields);
+        return createParserWithFields(getDefaultFields());
     }
 
     /**
@@ -70,8 +77,95 @@ public class UserAgentService {
         return createParserWithFields(fields);
     }
 
+    /**
+     * Returns a parser based on the bundled BrowsCap version
+     * @param fields list
+     * @param options The options for building the parser
+     * @return the user agent parser
+     */
+    public UserAgentParser loadParser(final Collection<BrowsCapField> fields, final ParserOptions options)
+            throws IOException, ParseException {
+        return createParserWithFields(fields, options);
+    }
+
     private UserAgentParser createParserWithFields(final Collection<BrowsCapField> fields)
             throws IOException, ParseException {
+        return createParserWithFields(fields, new ParserOptions());
+    }
+
+    private UserAgentParser createParserWithFields(final Collection<BrowsCapField> fields,
+            final ParserOptions options) throws IOException, ParseException {
+
+        // The snapshot written when building this library contains the default fields of the bundled file
+        if (myZipFilePath == null && myZipFileStream == null) {
+            final ByteBuffer snapshot = getBundledSnapshot();
+            final UserAgentParser parser =
+                    snapshot == null ? null : UserAgentFileParser.parseSnapshotIfContains(snapshot, fields, options);
+            if (parser != null) {
+                return parser;
+            }
+        }
+        return readCsvFile(reader -> UserAgentFileParser.parse(reader, fields, options));
+    }
+
+    // Reads the bundled snapshot, which is missing if the build didn't write it, and is compressed to keep the jar small
+    private ByteBuffer getBundledSnapshot() throws IOException, ParseException {
+        final InputStream resource = getClass().getClassLoader().getResourceAsStream(getBundledSnapshotFileName());
+        if (resource == null) {
+            return null;
+        }
+        try (final InputStream input = new GZIPInputStream(resource, 1 << 16)) {
+            return UserAgentFileParser.readSnapshot(input);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the parser for the BrowsCap CSV file of this service. Loading a parser from the snapshot is
+     * several times faster than creating it from the CSV file, as the rules don't need to be parsed, ordered and
+     * filtered again.
+     * @param fields The fields which can be loaded from the snapshot
+     * @param options The options for building the parser, of which the number of filters is stored
+     * @param snapshot The path of the snapshot file, which is overwritten if it exists
+     */
+    public void writeSnapshot(final Collection<BrowsCapField> fields, final ParserOptions options,
+            final Path snapshot) throws IOException, ParseException {
+        try (final OutputStream output = new BufferedOutputStream(Files.newOutputStream(snapshot))) {
+            readCsvFile(reader -> {
+                UserAgentFileParser.writeSnapshot(reader, fields, options, output);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Returns a parser based on a snapshot, loading the default fields
+     * @param snapshot The path of the snapshot file, as written by {@link #writeSnapshot}
+     * @return the user agent parser
+     */
+    public static UserAgentParser loadSnapshot(final Path snapshot) throws IOException, ParseException {
+        return loadSnapshot(snapshot, getDefaultFields(), new ParserOptions());
+    }
+
+    /**
+     * Returns a parser based on a snapshot. The file is mapped into memory instead of being read.
+     * @param snapshot The path of the snapshot file, as written by {@link #writeSnapshot}
+     * @param fields The fields to load, which should have been written to the snapshot
+     * @param options The options for building the parser
+     * @return the user agent parser
+     */
+    public static UserAgentParser loadSnapshot(final Path snapshot, final Collection<BrowsCapField> fields,
+            final ParserOptions options) throws IOException, ParseException {
+        try (final FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+            return UserAgentFileParser.parseSnapshot(buffer, fields, options);
+        }
+    }
+
+    private static Set<BrowsCapField> getDefaultFields() {
+        return Stream.of(BrowsCapField.values()).filter(BrowsCapField::isDefault).collect(toSet());
+    }
+
+    private <T> T readCsvFile(final CsvFileReader<T> csvFileReader) throws IOException, ParseException {
         // http://browscap.org/version-number
         try (final InputStream zipStream = getCsvFileStream();
                 final ZipInputStream zipIn = new ZipInputStream(zipStream)) {
@@ -82,7 +176,7 @@ public class UserAgentService {
                 entry = zipIn.getNextEntry();
             } while (!(entry == null || entry.getName().endsWith(".csv")));
             if (!(entry == null || entry.isDirectory())) {
-                return UserAgentFileParser.parse(new InputStreamReader(zipIn, UTF_8), fields);
+                return csvFileReader.read(new InputStreamReader(zipIn, UTF_8));
             } else {
                 throw new IOException(
                         "Unable to find the BrowsCap CSV file in the ZIP file");
@@ -90,6 +184,11 @@ public class UserAgentService {
         }
     }
 
+    // Reads the CSV file in the ZIP file
+    private interface CsvFileReader<T> {
+        T read(Reader reader) throws IOException, ParseException;
+    }
+
     /**
      * Returns the bundled ZIP file name
      * @return CSV file name
@@ -98,6 +197,15 @@ public class UserAgentService {
         return "browscap-" + BUNDLED_BROWSCAP_VERSION + ".zip";
     }
 
+    /**
+     * Returns the file name of the snapshot of the bundled ZIP file, which is written when building this library and
+     * compressed with GZIP
+     * @return snapshot file name
+     */
+    public static String getBundledSnapshotFileName() {
+        return "browscap-" + BUNDLED_BROWSCAP_VERSION + ".snapshot.gz";
+    }
+
     /**
      * Returns the InputStream to the CSV file. This is either the bundled ZIP file or the one passed in the
      * constructor.
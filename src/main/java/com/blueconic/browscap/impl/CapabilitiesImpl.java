@@ -18,6 +18,10 @@ class CapabilitiesImpl implements Capabilities {
     private final String[] myValues;
     private final Mapper myMapper;
 
+    // The map of all values, created on first use. The map is unmodifiable, so it can be shared without
+    // synchronization.
+    private Map<BrowsCapField, String> myAll;
+
     CapabilitiesImpl(final String[] values, final Mapper mapper) {
         myValues = values;
         myMapper = mapper;
@@ -81,7 +85,12 @@ class CapabilitiesImpl implements Capabilities {
      */
     @Override
     public Map<BrowsCapField, String> getValues() {
-        return myMapper.getAll(myValues);
+        Map<BrowsCapField, String> result = myAll;
+        if (result == null) {
+            result = myMapper.getAll(myValues);
+            myAll = result;
+        }
+        return result;
     }
     
     /**
@@ -0,0 +1,62 @@
+package com.blueconic.browscap.impl;
+
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Splits a CSV stream into batches of complete rows, so the batches can be parsed independently. A batch ends at a
+ * line separator outside quotes, as the quotes in the values are escaped by doubling them.
+ */
+class CsvBatchReader {
+
+    private final Reader myReader;
+    private final int myBatchSize;
+
+    // The characters read but not yet returned in a batch are the ones from the position up to the limit
+    private final char[] myBuffer = new char[8192];
+    private int myPosition;
+    private int myLimit;
+
+    private boolean myIsQuoted;
+
+    /**
+     * Creates a reader of batches.
+     * @param reader The reader of the CSV stream
+     * @param batchSize The minimum number of characters of a batch, except for the last one
+     */
+    CsvBatchReader(final Reader reader, final int batchSize) {
+        myReader = reader;
+        myBatchSize = batchSize;
+    }
+
+    /**
+     * Reads the next batch of rows.
+     * @return the rows including their line separators, or <code>null</code> at the end of the stream
+     * @throws IOException If reading the stream failed
+     */
+    String next() throws IOException {
+        final StringBuilder batch = new StringBuilder(myBatchSize + 1024);
+        while (true) {
+            if (myPosition == myLimit) {
+                myPosition = 0;
+                myLimit = Math.max(0, myReader.read(myBuffer));
+                if (myLimit == 0) {
+                    return batch.length() == 0 ? null : batch.toString();
+                }
+            }
+
+            for (int i = myPosition; i < myLimit; i++) {
+                final char c = myBuffer[i];
+                if (c == '"') {
+                    myIsQuoted = !myIsQuoted;
+                } else if (c == '\n' && !myIsQuoted && batch.length() + i - myPosition >= myBatchSize) {
+                    batch.append(myBuffer, myPosition, i + 1 - myPosition);
+                    myPosition = i + 1;
+                    return batch.toString();
+                }
+            }
+            batch.append(myBuffer, myPosition, myLimit - myPosition);
+            myPosition = myLimit;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.blueconic.browscap.impl;
+
+import java.util.Arrays;
+
+/**
+ * Hash table of the patterns of the rules without wildcards, which only match a useragent equal to their pattern. A
+ * useragent is looked up with a single hash, before evaluating filters or candidates. A rule with a higher priority
+ * may still match the same useragent, so the actual match of an entry is determined by a normal search the first time
+ * it is found, and is remembered afterwards.
+ */
+class ExactMatchTable {
+
+    // The match of an entry which hasn't been determined yet
+    static final int UNRESOLVED = -1;
+
+    // The index of the highest priority rule of each slot, or -1 for empty slots
+    private final int[] myRules;
+
+    // The first matching rule of each slot. Concurrent searches determine the same value, so writes don't need to be
+    // synchronized.
+    private final int[] myMatches;
+
+    private final RuleTable myTable;
+
+    /**
+     * Creates the table for the exact rules of the compiled rules. Patterns with a question mark match more than a
+     * single useragent, so they are left to the normal search.
+     * @param table The compiled rules, ordered by priority
+     */
+    ExactMatchTable(final RuleTable table) {
+        myTable = table;
+
+        int nrOfRules = 0;
+        for (int i = 0; i < table.getSize(); i++) {
+            if (isHashable(table, i)) {
+                nrOfRules++;
+            }
+        }
+        final int capacity = Integer.highestOneBit(Math.max(1, nrOfRules) * 4 - 1);
+        myRules = new int[capacity];
+        myMatches = new int[capacity];
+        Arrays.fill(myRules, -1);
+        Arrays.fill(myMatches, UNRESOLVED);
+
+        // Only the first of equal patterns is stored
+        for (int i = 0; i < table.getSize(); i++) {
+            if (isHashable(table, i)) {
+                final Literal pattern = table.getPrefix(i);
+                int slot = getSlot(Literal.fold(pattern.toString()).hashCode());
+                while (myRules[slot] >= 0 && !pattern.toString().equals(table.getPrefix(myRules[slot]).toString())) {
+                    slot = slot + 1 & capacity - 1;
+                }
+                if (myRules[slot] < 0) {
+                    myRules[slot] = i;
+                }
+            }
+        }
+    }
+
+    private static boolean isHashable(final RuleTable table, final int rule) {
+        return table.isExact(rule) && table.getPrefix(rule).toString().indexOf('?') < 0;
+    }
+
+    private int getSlot(final int hash) {
+        return (hash ^ hash >>> 16) & myRules.length - 1;
+    }
+
+    /**
+     * Finds the entry for the useragent.
+     * @param value The useragent
+     * @return the slot of the entry whose pattern equals the useragent, or -1 if there's no such entry
+     */
+    int find(final SearchableString value) {
+        final int size = value.getSize();
+
+        // The same hash as the one of the pattern, as represented by its bytes
+        int hash = 0;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + value.charAt(i);
+        }
+
+        for (int slot = getSlot(hash); myRules[slot] >= 0; slot = slot + 1 & myRules.length - 1) {
+            final Literal pattern = myTable.getPrefix(myRules[slot]);
+            if (pattern.getLength() == size && value.startsWith(pattern)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the first matching rule of an entry.
+     * @param slot The slot of the entry
+     * @return the index of the rule, or {@link #UNRESOLVED} if it hasn't been determined yet
+     */
+    int getMatch(final int slot) {
+        return myMatches[slot];
+    }
+
+    /**
+     * Remembers the first matching rule of an entry.
+     * @param slot The slot of the entry
+     * @param rule The index of the rule
+     */
+    void setMatch(final int slot, final int rule) {
+        myMatches[slot] = rule;
+    }
+}
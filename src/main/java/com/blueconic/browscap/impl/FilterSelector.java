@@ -0,0 +1,444 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.impl.RuleTrie.getPostfixKey;
+import static com.blueconic.browscap.impl.RuleTrie.getPrefixKey;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import com.blueconic.browscap.impl.LiteralAutomaton.IntList;
+
+/**
+ * This class is responsible for choosing the filters of a parser based on the loaded rules. A filter discards all
+ * rules requiring a substring (or prefix) when a useragent doesn't contain it, so a good filter is required by many
+ * rules, but not by so many that most useragents contain it. Filters are chosen greedily by simulating lookups on a
+ * sample of the rules: each filter should discard as many of the rules checked before a match as possible, that
+ * aren't discarded by the filters chosen so far.
+ */
+class FilterSelector {
+
+    // The number of rules used for estimating the effect of the candidates
+    static final int SAMPLE_SIZE = 20000;
+
+    // The number of sampled rules acting as useragents when estimating the effect of the candidates
+    static final int USERAGENT_SAMPLE_SIZE = 512;
+
+    // The number of candidates considered by the greedy selection
+    private static final int POOL_SIZE = 1000;
+
+    // Candidates should be required by at least this number of sampled rules
+    private static final int MIN_SUPPORT = 2;
+
+    // Characters separating the segments of a literal, e.g. the parts of the comment of a useragent
+    private static final String SEGMENT_SEPARATORS = "();,";
+
+    private final Rule[] myRules;
+
+    /**
+     * Creates a new selector for the specified rules.
+     * @param rules The rules, ordered by priority
+     */
+    FilterSelector(final Rule[] rules) {
+        myRules = rules;
+    }
+
+    /**
+     * Selects the filters which discard most rules.
+     * @param nrOfFilters The maximum number of filters
+     * @return the selected filters, best first
+     */
+    List<Candidate> select(final int nrOfFilters) {
+        if (nrOfFilters == 0 || myRules.length == 0) {
+            return Collections.emptyList();
+        }
+
+        // Sample the rules evenly over the priority order
+        final int stride = Math.max(1, myRules.length / SAMPLE_SIZE);
+        final List<Rule> sample = new ArrayList<>();
+        for (int i = 0; i < myRules.length; i += stride) {
+            sample.add(myRules[i]);
+        }
+
+        // Derive the candidates from the literals of the sampled rules
+        final Map<String, Integer> candidateIds = new HashMap<>();
+        final List<Candidate> candidates = new ArrayList<>();
+        final Set<String> literals = new LinkedHashSet<>();
+        for (final Rule rule : sample) {
+            for (final Literal literal : rule.getLiterals()) {
+                if (literals.add(literal.toString())) {
+                    for (final String pattern : getContainsCandidates(literal.toString())) {
+                        addCandidate(pattern, false, candidateIds, candidates);
+                    }
+                }
+            }
+            final Literal prefix = rule.getPrefix();
+            if (prefix != null) {
+                for (final String pattern : getPrefixCandidates(prefix.toString())) {
+                    addCandidate(pattern, true, candidateIds, candidates);
+                }
+            }
+        }
+
+        // Determine which sampled rules require each candidate
+        final IntList[] postings = getPostings(sample, literals, candidates);
+
+        return selectGreedy(nrOfFilters, sample, candidates, postings);
+    }
+
+    private IntList[] getPostings(final List<Rule> sample, final Set<String> literals,
+            final List<Candidate> candidates) {
+
+        // Find the contains candidates in each distinct literal in a single pass
+        final LiteralDomain domain = new LiteralDomain();
+        final List<Literal> patterns = new ArrayList<>();
+        final List<Candidate> unindexed = new ArrayList<>();
+        final List<Candidate> prefixes = new ArrayList<>();
+        for (final Candidate candidate : candidates) {
+            final Literal literal = domain.createLiteral(candidate.getPattern());
+            patterns.add(literal);
+            if (candidate.isPrefix()) {
+                prefixes.add(candidate);
+            } else if (candidate.getPattern().indexOf('?') >= 0) {
+                unindexed.add(candidate);
+            }
+        }
+        final LiteralAutomaton automaton = new LiteralAutomaton(patterns);
+
+        final Map<String, int[]> contained = new HashMap<>();
+        for (final String literal : literals) {
+            final IntList found = new IntList();
+            final byte[] bytes = Literal.toBytes(literal);
+            automaton.scan(bytes, bytes.length, (index, start) -> {
+                if (!candidates.get(index).isPrefix()) {
+                    found.add(index);
+                }
+            });
+
+            // Question marks in the candidates match any character
+            for (final Candidate candidate : unindexed) {
+                if (Literal.requires(literal, candidate.getPattern())) {
+                    found.add(candidate.getId());
+                }
+            }
+            contained.put(literal, found.toArray());
+        }
+
+        final IntList[] postings = new IntList[candidates.size()];
+        for (int i = 0; i < postings.length; i++) {
+            postings[i] = new IntList();
+        }
+        final int[] lastRule = new int[candidates.size()];
+        for (int r = 0; r < sample.size(); r++) {
+            final Rule rule = sample.get(r);
+            for (final Literal literal : rule.getLiterals()) {
+                for (final int id : contained.get(literal.toString())) {
+                    if (lastRule[id] != r + 1) {
+                        lastRule[id] = r + 1;
+                        postings[id].add(r);
+                    }
+                }
+            }
+            final Literal prefix = rule.getPrefix();
+            if (prefix != null) {
+                for (final Candidate candidate : prefixes) {
+                    if (prefix.toString().startsWith(candidate.getPattern())) {
+                        postings[candidate.getId()].add(r);
+                    }
+                }
+            }
+        }
+        return postings;
+    }
+
+    private static List<Candidate> selectGreedy(final int nrOfFilters, final List<Rule> sample,
+            final List<Candidate> candidates, final IntList[] postings) {
+        final int sampleSize = sample.size();
+
+        // Only consider the most promising candidates, based on how well they split the rules by themselves
+        final List<Candidate> pool = new ArrayList<>();
+        for (final Candidate candidate : candidates) {
+            final int support = postings[candidate.getId()].size();
+            if (support >= MIN_SUPPORT && support < sampleSize) {
+                candidate.myScore = (double) support * (sampleSize - support);
+                pool.add(candidate);
+            }
+        }
+        pool.sort((a, b) -> Double.compare(b.myScore, a.myScore));
+        final List<Candidate> top = pool.subList(0, Math.min(POOL_SIZE, pool.size()));
+
+        // The rules required by each candidate, as bits over the sample
+        final int words = (sampleSize + 63) / 64;
+        final Map<Candidate, long[]> required = new HashMap<>();
+        for (final Candidate candidate : top) {
+            final long[] bits = new long[words];
+            final IntList posting = postings[candidate.getId()];
+            for (int i = 0; i < posting.size(); i++) {
+                bits[posting.get(i) >>> 6] |= 1L << posting.get(i);
+            }
+            required.put(candidate, bits);
+        }
+
+        // Some sampled rules act as useragents; only the rules preceding their match are relevant for them
+        final int stride = Math.max(1, sampleSize / USERAGENT_SAMPLE_SIZE);
+        final List<UserAgentSample> userAgents = new ArrayList<>();
+        for (int i = 0; i < sampleSize; i += stride) {
+            userAgents.add(new UserAgentSample(i, words, sample));
+        }
+
+        // A candidate gains the relevant rules it discards which are not discarded yet. Gains only decrease, so
+        // a candidate with an up-to-date gain at the head of the queue is the best one.
+        final PriorityQueue<Candidate> queue = new PriorityQueue<>((a, b) -> Double.compare(b.myScore, a.myScore));
+        for (final Candidate candidate : top) {
+            candidate.myScore = getGain(required.get(candidate), userAgents);
+            queue.add(candidate);
+        }
+
+        final List<Candidate> result = new ArrayList<>();
+        int round = 0;
+        while (result.size() < nrOfFilters && !queue.isEmpty()) {
+            final Candidate best = queue.poll();
+            final long[] bits = required.get(best);
+            if (best.myRound != round) {
+                best.myScore = getGain(bits, userAgents);
+                best.myRound = round;
+                queue.add(best);
+                continue;
+            }
+            if (best.myScore <= 0) {
+                break;
+            }
+
+            result.add(best);
+            for (final UserAgentSample userAgent : userAgents) {
+                userAgent.exclude(bits);
+            }
+            round++;
+        }
+        return result;
+    }
+
+    private static long getGain(final long[] required, final List<UserAgentSample> userAgents) {
+        long gain = 0;
+        for (final UserAgentSample userAgent : userAgents) {
+            gain += userAgent.getGain(required);
+        }
+        return gain;
+    }
+
+    private static void addCandidate(final String pattern, final boolean isPrefix, final Map<String, Integer> ids,
+            final List<Candidate> candidates) {
+        final String key = (isPrefix ? "^" : "") + pattern;
+        if (!ids.containsKey(key)) {
+            ids.put(key, candidates.size());
+            candidates.add(new Candidate(pattern, isPrefix, candidates.size()));
+        }
+    }
+
+    /**
+     * Returns the substrings of a literal that are candidates for a contains filter: the literal itself, its segments
+     * and words, its alphanumeric tokens and its single non-letter characters.
+     * @param literal The literal
+     * @return the candidate substrings
+     */
+    static Set<String> getContainsCandidates(final String literal) {
+        final Set<String> result = new LinkedHashSet<>();
+        addPattern(result, literal);
+
+        for (final String segment : split(literal, SEGMENT_SEPARATORS)) {
+            addPattern(result, segment.trim());
+            for (final String word : segment.trim().split(" ")) {
+                addPattern(result, word);
+            }
+        }
+
+        final StringBuilder token = new StringBuilder();
+        for (int i = 0; i <= literal.length(); i++) {
+            final char c = i < literal.length() ? literal.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                token.append(c);
+                continue;
+            }
+            addPattern(result, token.toString());
+            token.setLength(0);
+            if (c != ' ' && c != '?') {
+                result.add(String.valueOf(c));
+            }
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (Character.isDigit(literal.charAt(i))) {
+                result.add(literal.substring(i, i + 1));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the candidates for a prefix filter: the leading product token of a prefix, with and without its minor
+     * version.
+     * @param prefix The prefix of a rule
+     * @return the candidate prefixes
+     */
+    static Set<String> getPrefixCandidates(final String prefix) {
+        final Set<String> result = new LinkedHashSet<>();
+        int end = 0;
+        while (end < prefix.length() && " (;?".indexOf(prefix.charAt(end)) < 0) {
+            end++;
+        }
+        final String product = prefix.substring(0, end);
+        addPattern(result, product);
+
+        final int dot = product.indexOf('.', product.indexOf('/') + 1);
+        if (dot > 0) {
+            addPattern(result, product.substring(0, dot));
+        }
+        return result;
+    }
+
+    private static void addPattern(final Set<String> result, final String pattern) {
+        if (pattern.length() > 1) {
+            result.add(pattern);
+        }
+    }
+
+    private static List<String> split(final String value, final String separators) {
+        final List<String> result = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            if (separators.indexOf(value.charAt(i)) >= 0) {
+                result.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        result.add(value.substring(start));
+        return result;
+    }
+
+    /**
+     * Indicates whether the prefix and the postfix of a rule can match a useragent matching another rule. The tries of
+     * the parser discard all other rules before any filter is applied.
+     * @param userAgent The rule acting as useragent
+     * @param rule The rule that should be tested
+     * @return <code>true</code> if the prefixes and postfixes are compatible, <code>false</code> otherwise.
+     */
+    static boolean isCompatible(final Rule userAgent, final Rule rule) {
+        final boolean exact = userAgent.getSuffixes() == null;
+        return isCompatible(getPrefixKey(userAgent), getPrefixKey(rule), exact)
+                && isCompatible(getPostfixKey(userAgent), getPostfixKey(rule), exact);
+    }
+
+    private static boolean isCompatible(final String start, final String key, final boolean exact) {
+        if (start == null || key == null) {
+            return true;
+        }
+
+        // A useragent matching a rule without wildcards equals its pattern
+        if (key.length() > start.length() && exact) {
+            return false;
+        }
+        final int length = Math.min(key.length(), start.length());
+        for (int i = 0; i < length; i++) {
+            final char c = key.charAt(i);
+            if (c != start.charAt(i) && c != '?' && start.charAt(i) != '?') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A sampled rule acting as a useragent which contains exactly the literals of the rule. It keeps track of the
+     * sampled rules that are discarded by the selected filters or by the tries, or that are irrelevant because
+     * they follow the rule.
+     */
+    static class UserAgentSample {
+        private final int myIndex;
+        private final long[] myExcluded;
+
+        UserAgentSample(final int index, final long[] excluded) {
+            myIndex = index;
+            myExcluded = excluded;
+        }
+
+        UserAgentSample(final int index, final int words, final List<Rule> sample) {
+            this(index, new long[words]);
+            for (int i = 0; i < index; i++) {
+                if (!isCompatible(sample.get(index), sample.get(i))) {
+                    myExcluded[i >>> 6] |= 1L << i;
+                }
+            }
+            for (int i = index; i < words * 64; i++) {
+                myExcluded[i >>> 6] |= 1L << i;
+            }
+        }
+
+        // A filter only applies to this useragent if the rule doesn't require the filter itself
+        private boolean isFiltered(final long[] required) {
+            return (required[myIndex >>> 6] & 1L << myIndex) == 0;
+        }
+
+        long getGain(final long[] required) {
+            if (!isFiltered(required)) {
+                return 0;
+            }
+            long gain = 0;
+            final int words = (myIndex >>> 6) + 1;
+            for (int i = 0; i < words; i++) {
+                gain += Long.bitCount(required[i] & ~myExcluded[i]);
+            }
+            return gain;
+        }
+
+        void exclude(final long[] required) {
+            if (isFiltered(required)) {
+                for (int i = 0; i < myExcluded.length; i++) {
+                    myExcluded[i] |= required[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * A potential filter, either requiring a prefix or a substring.
+     */
+    static class Candidate {
+        private final String myPattern;
+        private final boolean myIsPrefix;
+        private final int myId;
+
+        // State of the greedy selection
+        private double myScore;
+        private int myRound;
+
+        Candidate(final String pattern, final boolean isPrefix, final int id) {
+            myPattern = pattern;
+            myIsPrefix = isPrefix;
+            myId = id;
+        }
+
+        String getPattern() {
+            return myPattern;
+        }
+
+        boolean isPrefix() {
+            return myIsPrefix;
+        }
+
+        int getId() {
+            return myId;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return (myIsPrefix ? "prefix " : "contains ") + myPattern;
+        }
+    }
+}
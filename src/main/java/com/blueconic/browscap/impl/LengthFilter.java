@@ -0,0 +1,87 @@
+package com.blueconic.browscap.impl;
+
+import java.util.BitSet;
+
+/**
+ * Filter discarding the rules which need a longer useragent than the one being parsed. The useragent lengths are
+ * divided in buckets, and each bucket has a mask of the rules whose literals are longer in total than any useragent in
+ * the bucket. Short useragents discard most rules with a single mask.
+ */
+class LengthFilter {
+
+    // The first length of each bucket except the first one, finer for short lengths
+    private static final int[] THRESHOLDS = {4, 8, 12, 16, 24, 32, 48, 64, 96, 128, 192, 256};
+
+    // The bucket of each useragent length below the last threshold
+    private static final byte[] BUCKETS = getBuckets();
+
+    // The rules which can't match any useragent of a bucket, useragents beyond the last threshold keep all rules
+    private final RuleBitmap[] myMasks = new RuleBitmap[THRESHOLDS.length];
+
+    /**
+     * Creates the masks for the compiled rules.
+     * @param table The compiled rules, ordered by priority
+     */
+    LengthFilter(final RuleTable table) {
+        final BitSet[] masks = new BitSet[THRESHOLDS.length];
+        for (int i = 0; i < masks.length; i++) {
+            masks[i] = new BitSet(table.getSize());
+        }
+
+        // A rule is discarded for all buckets whose lengths are shorter than its minimum length
+        for (int rule = 0; rule < table.getSize(); rule++) {
+            final int minLength = table.getMinLength(rule);
+            for (int i = 0; i < THRESHOLDS.length && minLength >= THRESHOLDS[i]; i++) {
+                masks[i].set(rule);
+            }
+        }
+        for (int i = 0; i < masks.length; i++) {
+            myMasks[i] = RuleBitmap.of(masks[i]);
+        }
+    }
+
+    private static byte[] getBuckets() {
+        final byte[] result = new byte[THRESHOLDS[THRESHOLDS.length - 1]];
+        int bucket = 0;
+        for (int length = 0; length < result.length; length++) {
+            while (length >= THRESHOLDS[bucket]) {
+                bucket++;
+            }
+            result[length] = (byte) bucket;
+        }
+        return result;
+    }
+
+    /**
+     * Removes the rules which need a longer useragent.
+     * @param userAgent The useragent
+     * @param resultIncludes The rules to check
+     */
+    void applyExcludes(final SearchableString userAgent, final MutableRuleBitmap resultIncludes) {
+        final int length = userAgent.getSize();
+        if (length < BUCKETS.length) {
+            resultIncludes.andNot(myMasks[BUCKETS[length]]);
+        }
+    }
+
+    /**
+     * Removes the rules of a single block which need a longer useragent.
+     * @param userAgent The useragent
+     * @param words The words of the block with the rules to check
+     * @param block The block number
+     * @return <code>false</code> if the words are known to be empty now, <code>true</code> otherwise
+     */
+    boolean applyExcludes(final SearchableString userAgent, final long[] words, final int block) {
+        final int length = userAgent.getSize();
+        return length >= BUCKETS.length || myMasks[BUCKETS[length]].andNotInto(words, block);
+    }
+
+    /**
+     * Returns the number of rules discarded for useragents of the specified length.
+     * @param length The length of the useragent
+     * @return the number of discarded rules
+     */
+    int getExcludeCount(final int length) {
+        return length < BUCKETS.length ? myMasks[BUCKETS[length]].getCardinality() : 0;
+    }
+}
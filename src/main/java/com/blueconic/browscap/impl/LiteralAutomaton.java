@@ -0,0 +1,263 @@
+package com.blueconic.browscap.impl;
+
+import static java.util.Arrays.binarySearch;
+import static java.util.Arrays.copyOf;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Aho-Corasick automaton for a collection of literals. A single left-to-right pass over a useragent finds all
+ * occurrences of all literals, instead of scanning the useragent once per literal. Literals containing question
+ * marks can't be represented by the automaton, these are still searched for individually.
+ */
+class LiteralAutomaton {
+
+    private static final int ROOT = 0;
+
+    // The children of node n are the nodes [myFirstChild[n], myFirstChild[n + 1]), ordered by their label
+    private final int[] myFirstChild;
+    private final char[] myLabels;
+
+    // The failure link of each node, and the nearest node on the failure path which produces output (or -1)
+    private final int[] myFailure;
+    private final int[] myOutputLink;
+
+    // The literals recognized by node n are stored at [myFirstOutput[n], myFirstOutput[n + 1])
+    private final int[] myFirstOutput;
+    private final int[] myOutputs;
+
+    // The depth of each node, which equals the length of the literals it recognizes
+    private final int[] myDepth;
+
+    // Fast path for transitions from the root node
+    private final int[] myRootTargets = new int[256];
+
+    // The indices of all literals that are recognized by this automaton
+    private final BitSet myIndexed = new BitSet();
+
+    // The recognized literal equal to the longest part without question marks of a literal by its index, null if none
+    private final Literal[] myAnchors;
+
+    /**
+     * Creates a new automaton for the specified literals.
+     * @param literals The literals, literals containing question marks are ignored
+     */
+    LiteralAutomaton(final Collection<Literal> literals) {
+
+        // Sort the literals, so the children of each trie node are contiguous
+        final List<Literal> sorted = new ArrayList<>();
+        final Map<String, Literal> byValue = new HashMap<>();
+        int maxIndex = -1;
+        for (final Literal literal : literals) {
+            maxIndex = Math.max(maxIndex, literal.getIndex());
+            if (literal.toString().indexOf('?') < 0) {
+                sorted.add(literal);
+                myIndexed.set(literal.getIndex());
+                byValue.putIfAbsent(literal.toString(), literal);
+            }
+        }
+
+        // The occurrences of a literal with question marks are found by the ones of its fixed part, if recognized
+        myAnchors = new Literal[maxIndex + 1];
+        for (final Literal literal : literals) {
+            if (literal.getAnchorLength() > 0 && literal.getAnchorLength() < literal.getLength()) {
+                myAnchors[literal.getIndex()] = byValue.get(literal.toString().substring(literal.getAnchor(),
+                        literal.getAnchor() + literal.getAnchorLength()));
+            }
+        }
+        sorted.sort((a, b) -> Literal.fold(a.toString()).compareTo(Literal.fold(b.toString())));
+
+        // Create the trie breadth first, every node is represented by a range of sorted literals sharing a prefix
+        final IntList rangeStart = new IntList();
+        final IntList rangeEnd = new IntList();
+        final IntList depth = new IntList();
+        final IntList firstChild = new IntList();
+        final IntList firstOutput = new IntList();
+        final IntList outputs = new IntList();
+        final StringBuilder labels = new StringBuilder();
+
+        rangeStart.add(0);
+        rangeEnd.add(sorted.size());
+        depth.add(0);
+        labels.append('\0');
+
+        for (int node = 0; node < depth.size(); node++) {
+            final int d = depth.get(node);
+            final int end = rangeEnd.get(node);
+            int i = rangeStart.get(node);
+
+            // Literals ending at this node sort first
+            firstOutput.add(outputs.size());
+            while (i < end && sorted.get(i).getLength() == d) {
+                outputs.add(sorted.get(i).getIndex());
+                i++;
+            }
+
+            // Group the remaining literals by their next character
+            firstChild.add(depth.size());
+            while (i < end) {
+                final char c = getChar(sorted.get(i), d);
+                final int start = i;
+                while (i < end && getChar(sorted.get(i), d) == c) {
+                    i++;
+                }
+                rangeStart.add(start);
+                rangeEnd.add(i);
+                depth.add(d + 1);
+                labels.append(c);
+            }
+        }
+        firstChild.add(depth.size());
+        firstOutput.add(outputs.size());
+
+        final int size = depth.size();
+        myFirstChild = firstChild.toArray();
+        myLabels = labels.toString().toCharArray();
+        myFirstOutput = firstOutput.toArray();
+        myOutputs = outputs.toArray();
+        myDepth = depth.toArray();
+
+        for (int c = 0; c < myRootTargets.length; c++) {
+            myRootTargets[c] = findChild(ROOT, (char) c);
+        }
+
+        // Nodes are numbered breadth first, so the failure link of a parent is known before its children
+        myFailure = new int[size];
+        myOutputLink = new int[size];
+        myOutputLink[ROOT] = -1;
+        for (int node = 0; node < size; node++) {
+            for (int child = myFirstChild[node]; child < myFirstChild[node + 1]; child++) {
+                final int failure = node == ROOT ? ROOT : next(myFailure[node], myLabels[child]);
+                myFailure[child] = failure;
+                myOutputLink[child] = hasOutput(failure) ? failure : myOutputLink[failure];
+            }
+        }
+    }
+
+    // Returns the character of a literal as represented by its byte
+    private static char getChar(final Literal literal, final int index) {
+        return (char) (literal.byteAt(index) & 0xFF);
+    }
+
+    /**
+     * Indicates whether all occurrences of the literal are reported by this automaton.
+     * @param literal The literal
+     * @return <code>true</code> if the literal is recognized by this automaton, <code>false</code> otherwise.
+     */
+    boolean contains(final Literal literal) {
+        return myIndexed.get(literal.getIndex());
+    }
+
+    /**
+     * Returns the literal recognized by this automaton which equals the longest part without question marks of the
+     * specified literal, so its occurrences are candidate positions of the literal.
+     * @param literal The literal
+     * @return the literal of the fixed part, or <code>null</code> if it isn't recognized by this automaton
+     */
+    Literal getAnchor(final Literal literal) {
+        final int index = literal.getIndex();
+        return index < myAnchors.length ? myAnchors[index] : null;
+    }
+
+    /**
+     * Finds all occurrences of all literals of this automaton in a single pass.
+     * @param bytes The bytes of the characters to search, see {@link Literal#toByte(char)}
+     * @param length The number of characters to search
+     * @param consumer Receives the index of each literal found and its start position, ordered by end position.
+     */
+    void scan(final byte[] bytes, final int length, final MatchConsumer consumer) {
+        int state = ROOT;
+        for (int i = 0; i < length; i++) {
+            state = next(state, (char) (bytes[i] & 0xFF));
+
+            int node = hasOutput(state) ? state : myOutputLink[state];
+            while (node >= 0) {
+                final int start = i + 1 - myDepth[node];
+                for (int j = myFirstOutput[node]; j < myFirstOutput[node + 1]; j++) {
+                    consumer.accept(myOutputs[j], start);
+                }
+                node = myOutputLink[node];
+            }
+        }
+    }
+
+    /**
+     * Returns the number of states of this automaton.
+     * @return the number of states
+     */
+    int getSize() {
+        return myDepth.length;
+    }
+
+    private boolean hasOutput(final int node) {
+        return myFirstOutput[node] < myFirstOutput[node + 1];
+    }
+
+    // Follows the failure links until a transition for the character is found
+    private int next(final int node, final char c) {
+        int current = node;
+        while (true) {
+            if (current == ROOT) {
+                return myRootTargets[c];
+            }
+            final int child = findChild(current, c);
+            if (child != ROOT) {
+                return child;
+            }
+            current = myFailure[current];
+        }
+    }
+
+    // Returns the child for the specified character, or the root node if there's no such child
+    private int findChild(final int node, final char c) {
+        final int from = myFirstChild[node];
+        final int to = myFirstChild[node + 1];
+        if (to - from < 8) {
+            for (int i = from; i < to; i++) {
+                if (myLabels[i] == c) {
+                    return i;
+                }
+            }
+            return ROOT;
+        }
+        final int found = binarySearch(myLabels, from, to, c);
+        return found >= 0 ? found : ROOT;
+    }
+
+    /**
+     * Callback for the matches found during a scan.
+     */
+    interface MatchConsumer {
+        void accept(int literalIndex, int start);
+    }
+
+    /** Minimal growable list of ints for building the automaton. */
+    static class IntList {
+        private int[] myValues = new int[16];
+        private int mySize;
+
+        void add(final int value) {
+            if (mySize == myValues.length) {
+                myValues = copyOf(myValues, mySize * 2);
+            }
+            myValues[mySize++] = value;
+        }
+
+        int get(final int index) {
+            return myValues[index];
+        }
+
+        int size() {
+            return mySize;
+        }
+
+        int[] toArray() {
+            return copyOf(myValues, mySize);
+        }
+    }
+}
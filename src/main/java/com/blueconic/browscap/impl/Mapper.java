@@ -7,12 +7,12 @@ import static com.blueconic.browscap.BrowsCapField.DEVICE_TYPE;
 import static com.blueconic.browscap.BrowsCapField.PLATFORM;
 import static com.blueconic.browscap.BrowsCapField.PLATFORM_VERSION;
 import static com.blueconic.browscap.Capabilities.UNKNOWN_BROWSCAP_VALUE;
+import static java.util.Collections.unmodifiableMap;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.EnumMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Map.Entry;
@@ -21,7 +21,11 @@ import com.blueconic.browscap.BrowsCapField;
 
 class Mapper {
 
-    private final Map<BrowsCapField, Integer> myIndices;
+    // The index of the value of each field by ordinal, -1 for fields which aren't loaded
+    private final int[] myIndices;
+
+    // The loaded fields in the order of their values
+    private final BrowsCapField[] myFields;
 
     Mapper(final Collection<BrowsCapField> fields) {
         // Get all fields
@@ -33,15 +37,16 @@ class Mapper {
         }
 
         // Get all unique values and keep a fixed order
-        myIndices = new EnumMap<>(BrowsCapField.class);
-        final List<BrowsCapField> ordered = new ArrayList<>(all);
-        for (int i = 0; i < ordered.size(); i++) {
-            myIndices.put(ordered.get(i), i);
+        myFields = all.toArray(new BrowsCapField[0]);
+        myIndices = new int[BrowsCapField.values().length];
+        Arrays.fill(myIndices, -1);
+        for (int i = 0; i < myFields.length; i++) {
+            myIndices[myFields[i].ordinal()] = i;
         }
     }
 
     String[] getValues(final Map<BrowsCapField, String> values) {
-        final String[] result = new String[myIndices.size()];
+        final String[] result = new String[myFields.length];
 
         // default values first, for backwards compatibility
         put(result, BROWSER, "Default Browser");
@@ -57,26 +62,28 @@ class Mapper {
         return result;
     }
 
-    public Map<BrowsCapField, String> getAll(final String[] values) {
+    /**
+     * Returns all values of the loaded fields.
+     * @param values The values, as created by {@link #getValues(Map)}
+     * @return an unmodifiable map of the values by field
+     */
+    Map<BrowsCapField, String> getAll(final String[] values) {
         final Map<BrowsCapField, String> result = new EnumMap<>(BrowsCapField.class);
-        for (final BrowsCapField field : myIndices.keySet()) {
-            result.put(field, getValue(values, field));
+        for (int i = 0; i < myFields.length; i++) {
+            result.put(myFields[i], values[i]);
         }
-        return result;
+        return unmodifiableMap(result);
     }
 
     String getValue(final String[] values, final BrowsCapField field) {
-        final Integer index = myIndices.get(field);
-        if (index != null) {
-            return values[index];
-        }
-        return null;
+        final int index = myIndices[field.ordinal()];
+        return index >= 0 ? values[index] : null;
     }
 
     private void put(final String[] values, final BrowsCapField field, final String value) {
-        final Integer index = myIndices.get(field);
-        if (index != null) {
+        final int index = myIndices[field.ordinal()];
+        if (index >= 0) {
             values[index] = value;
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,189 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.impl.RuleBitmap.CHUNK_BITS;
+import static com.blueconic.browscap.impl.RuleBitmap.CHUNK_SIZE;
+import static com.blueconic.browscap.impl.RuleBitmap.CHUNK_WORDS;
+
+import java.util.Arrays;
+
+/**
+ * Mutable set of rule indices, used for determining the rules to check for a single useragent. The words of a chunk
+ * are only allocated when the chunk gets rules, and are dropped again when removing rules empties them, so empty
+ * chunks cost nothing. Clearing the set keeps the allocated words for reuse.
+ */
+class MutableRuleBitmap {
+
+    // The words of each chunk, potentially null
+    private final long[][] myChunks;
+
+    // The words of a chunk are only in use if its stamp equals the epoch, which is increased when clearing the set
+    private final int[] myStamps;
+    private int myEpoch = 1;
+
+    /**
+     * Creates an empty set.
+     * @param size The number of rules
+     */
+    MutableRuleBitmap(final int size) {
+        myChunks = new long[(size + CHUNK_SIZE - 1) / CHUNK_SIZE][];
+        myStamps = new int[myChunks.length];
+    }
+
+    /**
+     * Removes all rules.
+     */
+    void clear() {
+        if (++myEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(myStamps, 0);
+            myEpoch = 1;
+        }
+    }
+
+    // Returns the words of a chunk, or null for an empty chunk
+    private long[] getChunk(final int key) {
+        return myStamps[key] == myEpoch ? myChunks[key] : null;
+    }
+
+    private long[] getOrCreateChunk(final int key) {
+        long[] chunk = myChunks[key];
+        if (chunk == null) {
+            chunk = new long[CHUNK_WORDS];
+            myChunks[key] = chunk;
+        } else if (myStamps[key] != myEpoch) {
+            Arrays.fill(chunk, 0);
+        }
+        myStamps[key] = myEpoch;
+        return chunk;
+    }
+
+    private void removeChunk(final int key) {
+        myStamps[key] = 0;
+    }
+
+    /**
+     * Adds a rule.
+     * @param index The index of the rule
+     */
+    void set(final int index) {
+        getOrCreateChunk(index >>> CHUNK_BITS)[(index & CHUNK_SIZE - 1) >>> 6] |= 1L << index;
+    }
+
+    /**
+     * Tests whether the set contains a rule.
+     * @param index The index of the rule
+     * @return <code>true</code> if the rule is in the set, <code>false</code> otherwise
+     */
+    boolean get(final int index) {
+        final int key = index >>> CHUNK_BITS;
+        final long[] chunk = key < myChunks.length ? getChunk(key) : null;
+        return chunk != null && (chunk[(index & CHUNK_SIZE - 1) >>> 6] & 1L << index) != 0;
+    }
+
+    /**
+     * Adds all rules of a compressed set.
+     * @param other The rules to add
+     */
+    void or(final RuleBitmap other) {
+        for (int i = 0; i < other.getNrOfContainers(); i++) {
+            other.getContainer(i).orInto(getOrCreateChunk(other.getKey(i)));
+        }
+    }
+
+    /**
+     * Adds all rules of another set.
+     * @param other The rules to add
+     */
+    void or(final MutableRuleBitmap other) {
+        for (int key = 0; key < myChunks.length; key++) {
+            final long[] otherChunk = other.getChunk(key);
+            if (otherChunk != null) {
+                final long[] chunk = getOrCreateChunk(key);
+                for (int i = 0; i < CHUNK_WORDS; i++) {
+                    chunk[i] |= otherChunk[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes all rules of a compressed set. Chunks without rules are skipped.
+     * @param other The rules to remove
+     */
+    void andNot(final RuleBitmap other) {
+        for (int i = 0; i < other.getNrOfContainers(); i++) {
+            final int key = other.getKey(i);
+            final long[] chunk = getChunk(key);
+            if (chunk != null && !other.getContainer(i).andNotInto(chunk)) {
+                removeChunk(key);
+            }
+        }
+    }
+
+    /**
+     * Only keeps the rules which are in another set as well.
+     * @param other The rules to keep
+     */
+    void and(final MutableRuleBitmap other) {
+        for (int key = 0; key < myChunks.length; key++) {
+            final long[] chunk = getChunk(key);
+            if (chunk == null) {
+                continue;
+            }
+            final long[] otherChunk = other.getChunk(key);
+            if (otherChunk == null) {
+                removeChunk(key);
+                continue;
+            }
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                chunk[i] &= otherChunk[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the first rule in the set at or after the specified index.
+     * @param from The index to start from
+     * @return the index of the next rule, or -1 if there's no such rule
+     */
+    int nextSetBit(final int from) {
+        int key = from >>> CHUNK_BITS;
+        if (key >= myChunks.length) {
+            return -1;
+        }
+        int word = (from & CHUNK_SIZE - 1) >>> 6;
+        long[] chunk = getChunk(key);
+        long bits = chunk == null ? 0 : chunk[word] & -1L << from;
+        while (true) {
+            if (bits != 0) {
+                return key << CHUNK_BITS | word << 6 | Long.numberOfTrailingZeros(bits);
+            }
+            if (++word == CHUNK_WORDS || chunk == null) {
+                word = 0;
+                do {
+                    if (++key == myChunks.length) {
+                        return -1;
+                    }
+                    chunk = getChunk(key);
+                } while (chunk == null);
+            }
+            bits = chunk[word];
+        }
+    }
+
+    /**
+     * Returns the number of rules in the set.
+     * @return the cardinality
+     */
+    int cardinality() {
+        int result = 0;
+        for (int key = 0; key < myChunks.length; key++) {
+            final long[] chunk = getChunk(key);
+            if (chunk != null) {
+                for (final long word : chunk) {
+                    result += Long.bitCount(word);
+                }
+            }
+        }
+        return result;
+    }
+}
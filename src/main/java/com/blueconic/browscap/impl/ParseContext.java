@@ -0,0 +1,128 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.impl.RuleBitmap.BLOCK_WORDS;
+import static java.util.Arrays.copyOf;
+
+/**
+ * The scratch state for parsing a single useragent. A context can be reused for parsing another useragent, in which
+ * case it resets its state instead of reallocating it, so parsing doesn't allocate memory once the buffers have grown
+ * to their final sizes. A context shouldn't be used by multiple threads at the same time.
+ */
+class ParseContext {
+
+    // The buffers for the active nodes of a trie walk, and for merging posting lists
+    static final int NODES = 0;
+    static final int NEXT_NODES = 1;
+    static final int POSITIONS = 2;
+    static final int HEAP = 3;
+
+    // The buffer for the filters discarding rules
+    static final int FILTERS = 4;
+
+    // The buffers for the nodes of the prefix and postfix tries matching the useragent
+    static final int PREFIX_NODES = 5;
+    static final int POSTFIX_NODES = 6;
+
+    private final SearchableString mySearchableString;
+    private final MutableRuleBitmap myIncludes;
+    private final MutableRuleBitmap myMatches;
+
+    // The words of the block of rules being checked, and of the rules matching the postfix
+    private final long[] myBlockIncludes = new long[BLOCK_WORDS];
+    private final long[] myBlockMatches = new long[BLOCK_WORDS];
+
+    private final int[][] myBuffers = new int[7][16];
+    private int[][] myLists = new int[16][];
+
+    /**
+     * Creates a context.
+     * @param searchableString The searchable string to reuse
+     * @param nrOfRules The number of rules
+     */
+    ParseContext(final SearchableString searchableString, final int nrOfRules) {
+        mySearchableString = searchableString;
+        myIncludes = new MutableRuleBitmap(nrOfRules);
+        myMatches = new MutableRuleBitmap(nrOfRules);
+    }
+
+    /**
+     * Resets the context for the specified useragent.
+     * @param userAgent The useragent, which is converted to lower case
+     * @return the searchable string for the useragent
+     */
+    SearchableString reset(final CharSequence userAgent) {
+        mySearchableString.resetToLowerCase(userAgent);
+        return mySearchableString;
+    }
+
+    /**
+     * Resets the context for the specified ISO-8859-1 encoded useragent.
+     * @param buffer The buffer with the useragent, which is converted to lower case
+     * @param offset The offset of the useragent in the buffer
+     * @param length The length of the useragent
+     * @return the searchable string for the useragent
+     */
+    SearchableString reset(final byte[] buffer, final int offset, final int length) {
+        mySearchableString.resetToLowerCase(buffer, offset, length);
+        return mySearchableString;
+    }
+
+    /**
+     * Returns the empty set for the rules to check.
+     * @return the cleared set
+     */
+    MutableRuleBitmap getIncludes() {
+        myIncludes.clear();
+        return myIncludes;
+    }
+
+    /**
+     * Returns an empty set for intermediate results.
+     * @return the cleared set
+     */
+    MutableRuleBitmap getMatches() {
+        myMatches.clear();
+        return myMatches;
+    }
+
+    /**
+     * Returns the words for the rules to check of a single block, which aren't cleared.
+     * @return the words
+     */
+    long[] getBlockIncludes() {
+        return myBlockIncludes;
+    }
+
+    /**
+     * Returns the words for intermediate results of a single block, which aren't cleared.
+     * @return the words
+     */
+    long[] getBlockMatches() {
+        return myBlockMatches;
+    }
+
+    /**
+     * Returns a buffer with the specified minimum length. Existing values are retained when the buffer grows.
+     * @param buffer The buffer, e.g. {@link #NODES}
+     * @param length The minimum length
+     * @return the buffer
+     */
+    int[] getBuffer(final int buffer, final int length) {
+        if (myBuffers[buffer].length < length) {
+            myBuffers[buffer] = copyOf(myBuffers[buffer], Math.max(length, 2 * myBuffers[buffer].length));
+        }
+        return myBuffers[buffer];
+    }
+
+    /**
+     * Returns a buffer for arrays with the specified minimum length.
+     * @param length The minimum length
+     * @return the buffer
+     */
+    int[][] getLists(final int length) {
+        if (myLists.length < length) {
+            myLists = new int[Math.max(length, 2 * myLists.length)][];
+        }
+        return myLists;
+    }
+}
@@ -0,0 +1,364 @@
+package com.blueconic.browscap.impl;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import com.blueconic.browscap.BrowsCapField;
+import com.blueconic.browscap.Capabilities;
+import com.blueconic.browscap.ParseException;
+import com.blueconic.browscap.ParserOptions;
+import com.blueconic.browscap.ParserOptions.Engine;
+import com.blueconic.browscap.UserAgentParser;
+import com.blueconic.browscap.impl.FilterSelector.Candidate;
+import com.blueconic.browscap.impl.UserAgentParserImpl.Filter;
+
+/**
+ * Binary representation of the compiled rules, so a parser can be created without reading the CSV file, ordering the
+ * rules and selecting the filters. The lookup structures derived from the rules, like the tries and the automaton, are
+ * built again when loading, which takes most of the loading time. A snapshot consists of a header and a payload:
+ * <ul>
+ * <li>the header: a magic number, the format version, the length of the payload and its CRC-32 checksum</li>
+ * <li>the names of the fields whose values are stored, so a parser can be loaded for any subset of them</li>
+ * <li>the distinct values, and the distinct capabilities as indices of their values</li>
+ * <li>the literals of the rules, and the rules in priority order as indices of their literals and capabilities</li>
+ * <li>the number of filters requested when writing, and the selected filters with the containers of their masks</li>
+ * </ul>
+ * All numbers are big-endian, strings are stored as their length in UTF-8 bytes followed by the bytes.
+ */
+final class ParserSnapshot {
+
+    // "BCSN", for recognizing a snapshot
+    static final int MAGIC = 0x4243534E;
+
+    // The version of the format, which is incremented when the format changes
+    static final int FORMAT_VERSION = 2;
+
+    // The size of the header
+    private static final int HEADER_SIZE = 16;
+
+    // The index representing a missing literal or missing suffixes
+    private static final int NONE = -1;
+
+    private ParserSnapshot() {
+        // Utility class
+    }
+
+    /**
+     * Writes the snapshot of a parser.
+     * @param output The output, which isn't closed
+     * @param fields The fields whose values are stored, in a fixed order
+     * @param orderedRules The rules of the parser, ordered by priority
+     * @param filters The filters of the parser
+     * @param nrOfFilters The number of filters requested when creating the parser
+     * @throws IOException If writing failed
+     */
+    static void write(final OutputStream output, final Collection<BrowsCapField> fields, final Rule[] orderedRules,
+            final List<Filter> filters, final int nrOfFilters) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream payload = new DataOutputStream(bytes);
+
+        final BrowsCapField[] orderedFields = fields.toArray(new BrowsCapField[0]);
+        payload.writeInt(orderedFields.length);
+        for (final BrowsCapField field : orderedFields) {
+            writeString(payload, field.name());
+        }
+
+        // Number the distinct capabilities and values, in order of the first rule which has them
+        final Map<Capabilities, Integer> capabilityIds = new IdentityHashMap<>();
+        final Map<String, Integer> valueIds = new HashMap<>();
+        final List<String> values = new ArrayList<>();
+        for (final Rule rule : orderedRules) {
+            if (capabilityIds.putIfAbsent(rule.getCapabilities(), capabilityIds.size()) == null) {
+                for (final BrowsCapField field : orderedFields) {
+                    if (valueIds.putIfAbsent(rule.getCapabilities().getValue(field), values.size()) == null) {
+                        values.add(rule.getCapabilities().getValue(field));
+                    }
+                }
+            }
+        }
+        payload.writeInt(values.size());
+        for (final String value : values) {
+            writeString(payload, value);
+        }
+        final Capabilities[] capabilities = new Capabilities[capabilityIds.size()];
+        capabilityIds.forEach((c, id) -> capabilities[id] = c);
+        payload.writeInt(capabilities.length);
+        for (final Capabilities c : capabilities) {
+            for (final BrowsCapField field : orderedFields) {
+                payload.writeInt(valueIds.get(c.getValue(field)));
+            }
+        }
+
+        // The literals are stored by their index in the domain
+        int nrOfLiterals = 0;
+        for (final Rule rule : orderedRules) {
+            for (final Literal literal : rule.getLiterals()) {
+                nrOfLiterals = Math.max(nrOfLiterals, literal.getIndex() + 1);
+            }
+        }
+        final String[] literals = new String[nrOfLiterals];
+        for (final Rule rule : orderedRules) {
+            for (final Literal literal : rule.getLiterals()) {
+                literals[literal.getIndex()] = literal.toString();
+            }
+        }
+        payload.writeInt(literals.length);
+        for (final String literal : literals) {
+            writeString(payload, literal);
+        }
+
+        payload.writeInt(orderedRules.length);
+        for (final Rule rule : orderedRules) {
+            payload.writeInt(capabilityIds.get(rule.getCapabilities()));
+            payload.writeInt(getIndex(rule.getPrefix()));
+            payload.writeInt(getIndex(rule.getPostfix()));
+            final Literal[] suffixes = rule.getSuffixes();
+            payload.writeInt(suffixes == null ? NONE : suffixes.length);
+            if (suffixes != null) {
+                for (final Literal suffix : suffixes) {
+                    payload.writeInt(suffix.getIndex());
+                }
+            }
+        }
+
+        payload.writeInt(nrOfFilters);
+        payload.writeInt(filters.size());
+        for (final Filter filter : filters) {
+            payload.writeBoolean(filter.isPrefix());
+            writeString(payload, filter.getPattern());
+            filter.getMask().write(payload);
+        }
+        payload.flush();
+
+        final CRC32 checksum = new CRC32();
+        checksum.update(bytes.toByteArray());
+        final DataOutputStream out = new DataOutputStream(output);
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(bytes.size());
+        out.writeInt((int) checksum.getValue());
+        bytes.writeTo(out);
+        out.flush();
+    }
+
+    private static int getIndex(final Literal literal) {
+        return literal == null ? NONE : literal.getIndex();
+    }
+
+    private static void writeString(final DataOutputStream output, final String value) throws IOException {
+        if (value == null) {
+            output.writeInt(NONE);
+        } else {
+            final byte[] bytes = value.getBytes(UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+    }
+
+    /**
+     * Reads a snapshot from a stream, e.g. a compressed one, into a buffer of the size stored in its header.
+     * @param input The input, which isn't closed
+     * @return the snapshot
+     * @throws IOException If reading failed
+     * @throws ParseException If the input doesn't start with the header of a snapshot, or is truncated
+     */
+    static ByteBuffer read(final InputStream input) throws IOException, ParseException {
+        final DataInputStream data = new DataInputStream(input);
+        try {
+            final int magic = data.readInt();
+            if (magic != MAGIC) {
+                throw new ParseException("The file isn't a snapshot");
+            }
+            final int version = data.readInt();
+            final int length = data.readInt();
+            final int checksum = data.readInt();
+            if (length < 0 || length > Integer.MAX_VALUE - HEADER_SIZE) {
+                throw new ParseException("The snapshot is corrupt");
+            }
+            final ByteBuffer result = ByteBuffer.allocate(HEADER_SIZE + length);
+            result.putInt(magic).putInt(version).putInt(length).putInt(checksum);
+            data.readFully(result.array(), HEADER_SIZE, length);
+            result.clear();
+            return result;
+        } catch (final EOFException e) {
+            throw new ParseException("The snapshot is truncated");
+        }
+    }
+
+    /**
+     * Returns the fields whose values are stored in a snapshot.
+     * @param buffer The snapshot, whose position is left unchanged
+     * @return the fields
+     * @throws ParseException If the buffer doesn't contain a valid snapshot
+     */
+    static Set<BrowsCapField> getFields(final ByteBuffer buffer) throws ParseException {
+        final ByteBuffer payload = getPayload(buffer);
+        try {
+            return readFields(payload);
+        } catch (final BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new ParseException("The snapshot is corrupt");
+        }
+    }
+
+    /**
+     * Creates a parser from a snapshot. The capabilities have the same values as the ones of a parser created from the
+     * CSV file with the same fields.
+     * @param buffer The snapshot, whose position is left unchanged
+     * @param parser The parser for creating the literals and capabilities, for the fields to load
+     * @param fields The fields to load
+     * @param options The options for building the parser
+     * @return the user agent parser, or <code>null</code> if the snapshot doesn't contain the values of all fields
+     * @throws ParseException If the buffer doesn't contain a valid snapshot
+     */
+    static UserAgentParser read(final ByteBuffer buffer, final UserAgentFileParser parser,
+            final Collection<BrowsCapField> fields, final ParserOptions options) throws ParseException {
+        final ByteBuffer payload = getPayload(buffer);
+        try {
+            return readPayload(payload, parser, fields, options);
+        } catch (final BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new ParseException("The snapshot is corrupt");
+        }
+    }
+
+    private static UserAgentParser readPayload(final ByteBuffer payload, final UserAgentFileParser parser,
+            final Collection<BrowsCapField> fields, final ParserOptions options) throws ParseException {
+        final Set<BrowsCapField> requested = fields.isEmpty() ? EnumSet.noneOf(BrowsCapField.class)
+                : EnumSet.copyOf(fields);
+        final Set<BrowsCapField> storedFields = readFields(payload);
+        if (!storedFields.containsAll(requested)) {
+            return null;
+        }
+        final BrowsCapField[] orderedFields = storedFields.toArray(new BrowsCapField[0]);
+
+        final String[] values = new String[payload.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = parser.getValue(readString(payload));
+        }
+
+        // Only the requested fields are kept, so capabilities differing in other fields become the same
+        final Capabilities[] capabilities = new Capabilities[payload.getInt()];
+        for (int i = 0; i < capabilities.length; i++) {
+            final Map<BrowsCapField, String> capabilityValues = new EnumMap<>(BrowsCapField.class);
+            for (final BrowsCapField field : orderedFields) {
+                final String value = values[payload.getInt()];
+                if (requested.contains(field)) {
+                    capabilityValues.put(field, value);
+                }
+            }
+            capabilities[i] = parser.getCapabilities(capabilityValues);
+        }
+
+        final Literal[] literals = new Literal[payload.getInt()];
+        for (int i = 0; i < literals.length; i++) {
+            final String literal = readString(payload);
+            literals[i] = literal == null ? null : parser.getLiteral(literal);
+        }
+
+        final Rule[] rules = new Rule[payload.getInt()];
+        for (int i = 0; i < rules.length; i++) {
+            final Capabilities ruleCapabilities = capabilities[payload.getInt()];
+            final Literal prefix = getLiteral(literals, payload.getInt());
+            final Literal postfix = getLiteral(literals, payload.getInt());
+            final int nrOfSuffixes = payload.getInt();
+            Literal[] suffixes = null;
+            if (nrOfSuffixes != NONE) {
+                suffixes = new Literal[nrOfSuffixes];
+                for (int j = 0; j < nrOfSuffixes; j++) {
+                    suffixes[j] = literals[payload.getInt()];
+                }
+            }
+            final String pattern = Rule.getPattern(prefix, suffixes, postfix);
+            rules[i] = new Rule(prefix, suffixes, postfix, pattern, ruleCapabilities);
+        }
+
+        // The filters are only reused if the same number of filters is requested
+        final int nrOfFilters = payload.getInt();
+        final int nrOfSelected = payload.getInt();
+        final List<Candidate> filters = new ArrayList<>();
+        final RuleBitmap[] masks = new RuleBitmap[nrOfSelected];
+        for (int i = 0; i < nrOfSelected; i++) {
+            final boolean isPrefix = payload.get() != 0;
+            filters.add(new Candidate(readString(payload), isPrefix, i));
+            masks[i] = RuleBitmap.read(payload, rules.length);
+        }
+        final boolean reuseFilters = options.getEngine() == Engine.FILTERS && options.getNrOfFilters() == nrOfFilters;
+
+        return new UserAgentParserImpl(rules, parser.getDomain(), parser.getDefaultCapabilities(), options,
+                reuseFilters ? filters : null, reuseFilters ? masks : null);
+    }
+
+    // Validates the header, and returns the payload
+    private static ByteBuffer getPayload(final ByteBuffer buffer) throws ParseException {
+        final ByteBuffer snapshot = buffer.duplicate();
+        if (snapshot.remaining() < HEADER_SIZE || snapshot.getInt() != MAGIC) {
+            throw new ParseException("The file isn't a snapshot");
+        }
+        final int version = snapshot.getInt();
+        if (version != FORMAT_VERSION) {
+            throw new ParseException("The version " + version + " of the snapshot isn't supported");
+        }
+        final int length = snapshot.getInt();
+        final int expected = snapshot.getInt();
+        if (length < 0 || length > snapshot.remaining()) {
+            throw new ParseException("The snapshot is truncated");
+        }
+        final ByteBuffer payload = snapshot.slice();
+        payload.limit(length);
+
+        final CRC32 checksum = new CRC32();
+        checksum.update(payload.duplicate());
+        if ((int) checksum.getValue() != expected) {
+            throw new ParseException("The checksum of the snapshot doesn't match");
+        }
+        return payload;
+    }
+
+    private static Set<BrowsCapField> readFields(final ByteBuffer payload) throws ParseException {
+        final Set<BrowsCapField> result = EnumSet.noneOf(BrowsCapField.class);
+        final int nrOfFields = payload.getInt();
+        for (int i = 0; i < nrOfFields; i++) {
+            final String name = readString(payload);
+            try {
+                result.add(BrowsCapField.valueOf(name));
+            } catch (final IllegalArgumentException | NullPointerException e) {
+                throw new ParseException("The snapshot contains the unknown field " + name);
+            }
+        }
+        return result;
+    }
+
+    private static Literal getLiteral(final Literal[] literals, final int index) {
+        return index == NONE ? null : literals[index];
+    }
+
+    private static String readString(final ByteBuffer payload) throws ParseException {
+        final int length = payload.getInt();
+        if (length == NONE) {
+            return null;
+        } else if (length < NONE || length > payload.remaining()) {
+            throw new ParseException("The snapshot contains a string of invalid length " + length);
+        }
+        final byte[] bytes = new byte[length];
+        payload.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
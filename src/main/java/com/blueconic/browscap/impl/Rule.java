@@ -1,10 +1,12 @@
 package com.blueconic.browscap.impl;
 
+import java.util.Arrays;
+
 import com.blueconic.browscap.Capabilities;
 
 /**
- * Instances of this class represent a line of the browscap data. This class is responsible for checking a potential
- * match and for supplying the corresponding browser properties.
+ * Instances of this class represent a line of the browscap data: the literals of its pattern and the corresponding
+ * browser properties. The rules are compiled into a {@link RuleTable}, which checks whether they match.
  */
 class Rule {
 
@@ -13,8 +15,8 @@ class Rule {
     private final Literal[] mySuffixes;
     private final Literal myPostfix;
 
-    // The size of the pattern
-    private final int mySize;
+    // The pattern, which is kept for ordering the rules by it
+    private final String myPattern;
 
     // The browser properties
     private final Capabilities myCapabilities;
@@ -34,7 +36,7 @@ class Rule {
         mySuffixes = suffixes;
         myPostfix = postfix;
         myCapabilities = capabilities;
-        mySize = pattern.length();
+        myPattern = pattern;
     }
 
     /**
@@ -62,27 +64,23 @@ class Rule {
     }
 
     /**
-     * Tests whether this rule needs a specific string in the useragent to match.
-     * @return <code>true</code> if this rule can't match without the specific substring, false otherwise.
+     * Returns all literals of the matching pattern: the prefix, the suffixes and the postfix.
+     * @return the literals, in order of the pattern
      */
-    boolean requires(final String value) {
-        if (requires(myPrefix, value) || requires(myPostfix, value)) {
-            return true;
+    Literal[] getLiterals() {
+        final int nrOfSuffixes = mySuffixes == null ? 0 : mySuffixes.length;
+        final Literal[] result = new Literal[nrOfSuffixes + 2];
+        int size = 0;
+        if (myPrefix != null) {
+            result[size++] = myPrefix;
         }
-
-        if (mySuffixes == null) {
-            return false;
+        for (int i = 0; i < nrOfSuffixes; i++) {
+            result[size++] = mySuffixes[i];
         }
-        for (final Literal suffix : mySuffixes) {
-            if (requires(suffix, value)) {
-                return true;
-            }
+        if (myPostfix != null) {
+            result[size++] = myPostfix;
         }
-        return false;
-    }
-
-    private static boolean requires(final Literal literal, final String value) {
-        return literal != null && literal.requires(value);
+        return Arrays.copyOf(result, size);
     }
 
     Capabilities getCapabilities() {
@@ -90,94 +88,39 @@ class Rule {
     }
 
     int getSize() {
-        return mySize;
-    }
-
-    final boolean matches(final SearchableString value) {
-
-        // Inclusive
-        final int start;
-        if (myPrefix == null) {
-            start = 0;
-        } else if (value.startsWith(myPrefix)) {
-            start = myPrefix.getLength();
-        } else {
-            return false;
-        }
-
-        // Inclusive
-        final int end;
-        if (myPostfix == null) {
-            end = value.getSize() - 1;
-        } else if (value.endsWith(myPostfix)) {
-            end = value.getSize() - 1 - myPostfix.getLength();
-        } else {
-            return false;
-        }
-
-        return checkWildCards(value, mySuffixes, start, end);
+        return myPattern.length();
     }
 
-    // Static for inline (2x)
-    static boolean checkWildCards(final SearchableString value, final Literal[] suffixes, final int start,
-            final int end) {
-
-        if (suffixes == null) {
-            // No wildcards
-            return start == end + 1;
-        }
-
-        // One wildcard
-        if (suffixes.length == 0) {
-            return start <= end + 1;
-        }
-
-        int from = start;
-        for (final Literal suffix : suffixes) {
-
-            final int match = checkWildCard(value, suffix, from);
-            if (match == -1) {
-                return false;
-            }
-
-            from = suffix.getLength() + match;
-            if (from > end + 1) {
-                return false;
-            }
-        }
-
-        return true;
-    }
-
-    // Return found index or -1
-    private static int checkWildCard(final SearchableString value, final Literal suffix, final int start) {
-        for (final int index : value.getIndices(suffix)) {
-            if (index >= start) {
-                return index;
-            }
-        }
-        return -1;
+    /**
+     * Returns the original pattern.
+     * @return the original pattern
+     */
+    String getPattern() {
+        return myPattern;
     }
 
     /**
-     * Returns the reconstructed original pattern.
-     * @return the reconstructed original pattern
+     * Returns the pattern of a rule with the specified literals.
+     * @param prefix The prefix, potentially <code>null</code>
+     * @param suffixes The required substrings separated by wildcards, potentially <code>null</code>
+     * @param postfix The postfix, potentially <code>null</code>
+     * @return the pattern
      */
-    String getPattern() {
+    static String getPattern(final Literal prefix, final Literal[] suffixes, final Literal postfix) {
         final StringBuilder result = new StringBuilder();
 
-        if (myPrefix != null) {
-            result.append(myPrefix);
+        if (prefix != null) {
+            result.append(prefix);
         }
-        if (mySuffixes != null) {
+        if (suffixes != null) {
             result.append("*");
-            for (final Literal sub : mySuffixes) {
+            for (final Literal sub : suffixes) {
                 result.append(sub);
                 result.append("*");
             }
         }
-        if (myPostfix != null) {
-            result.append(myPostfix);
+        if (postfix != null) {
+            result.append(postfix);
         }
         return result.toString();
     }
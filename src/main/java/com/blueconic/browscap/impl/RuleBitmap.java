@@ -0,0 +1,549 @@
+package com.blueconic.browscap.impl;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import com.blueconic.browscap.ParseException;
+
+/**
+ * Immutable, compressed set of rule indices. The indices are divided in chunks of 65536, and each non-empty chunk is
+ * stored in one of three container types: a sorted array of values, a list of runs or a bitmap. Operations on a
+ * {@link MutableRuleBitmap} only touch the chunks with rules, so their cost depends on the contents instead of on the
+ * total number of rules. A lookup may also process the rules per block of 4096, so it can stop at the first block with a
+ * matching rule.
+ */
+class RuleBitmap {
+
+    // The number of bits per chunk and per chunk word
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    static final int CHUNK_WORDS = CHUNK_SIZE / 64;
+
+    // The number of bits per block, the part of a chunk which is filtered and checked at once, and per block word
+    static final int BLOCK_BITS = 12;
+    static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+    static final int BLOCK_WORDS = BLOCK_SIZE / 64;
+
+    // The maximum number of values of an array container and of runs of a run container. Beyond these, applying the
+    // container is slower than applying a bitmap, even though it may be smaller.
+    private static final int MAX_ARRAY_SIZE = 256;
+    private static final int MAX_RUNS = 64;
+
+    // The chunk numbers of the non-empty chunks, in ascending order, and the corresponding containers
+    private final int[] myKeys;
+    private final Container[] myContainers;
+
+    // The container of each chunk up to the last non-empty one, potentially null, for applying single blocks
+    private final Container[] myContainersByKey;
+
+    private final int myCardinality;
+
+    private RuleBitmap(final int[] keys, final Container[] containers) {
+        myKeys = keys;
+        myContainers = containers;
+        myContainersByKey = new Container[keys.length == 0 ? 0 : keys[keys.length - 1] + 1];
+        for (int i = 0; i < keys.length; i++) {
+            myContainersByKey[keys[i]] = containers[i];
+        }
+
+        int cardinality = 0;
+        for (final Container container : containers) {
+            cardinality += container.getCardinality();
+        }
+        myCardinality = cardinality;
+    }
+
+    /**
+     * Creates the compressed representation of the specified set.
+     * @param bits The rule indices
+     * @return the compressed bitmap
+     */
+    static RuleBitmap of(final BitSet bits) {
+        final long[] words = bits.toLongArray();
+        final List<Integer> keys = new ArrayList<>();
+        final List<Container> containers = new ArrayList<>();
+        for (int from = 0; from < words.length; from += CHUNK_WORDS) {
+            final int to = Math.min(words.length, from + CHUNK_WORDS);
+            final Container container = createContainer(words, from, to);
+            if (container != null) {
+                keys.add(from / CHUNK_WORDS);
+                containers.add(container);
+            }
+        }
+        return new RuleBitmap(keys.stream().mapToInt(Integer::intValue).toArray(),
+                containers.toArray(new Container[0]));
+    }
+
+    /**
+     * Writes the containers, so the bitmap can be read again without compressing it.
+     * @param output The output
+     * @throws IOException If writing failed
+     */
+    void write(final DataOutputStream output) throws IOException {
+        output.writeInt(myKeys.length);
+        for (int i = 0; i < myKeys.length; i++) {
+            output.writeInt(myKeys[i]);
+            myContainers[i].write(output);
+        }
+    }
+
+    /**
+     * Reads the containers written by {@link #write(DataOutputStream)}.
+     * @param input The input, which is positioned after the bitmap
+     * @param size The number of rules
+     * @return the bitmap
+     * @throws ParseException If the chunks aren't ascending or exceed the number of rules, or the type of a container
+     *             is unknown
+     */
+    static RuleBitmap read(final ByteBuffer input, final int size) throws ParseException {
+        final int[] keys = new int[input.getInt()];
+        final Container[] containers = new Container[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = input.getInt();
+            if (keys[i] < (i == 0 ? 0 : keys[i - 1] + 1) || keys[i] > size - 1 >> CHUNK_BITS) {
+                throw new ParseException("Invalid chunk " + keys[i]);
+            }
+            final byte type = input.get();
+            switch (type) {
+                case ArrayContainer.TYPE:
+                    containers[i] = new ArrayContainer(readChars(input, input.getInt()));
+                    break;
+                case RunContainer.TYPE:
+                    final int nrOfRuns = input.getInt();
+                    containers[i] = new RunContainer(readChars(input, nrOfRuns), readChars(input, nrOfRuns));
+                    break;
+                case BitmapContainer.TYPE:
+                    final long[] words = new long[CHUNK_WORDS];
+                    input.asLongBuffer().get(words);
+                    input.position(input.position() + CHUNK_WORDS * Long.BYTES);
+                    int cardinality = 0;
+                    for (final long word : words) {
+                        cardinality += Long.bitCount(word);
+                    }
+                    containers[i] = new BitmapContainer(words, cardinality);
+                    break;
+                default:
+                    throw new ParseException("Invalid container type " + type);
+            }
+        }
+        return new RuleBitmap(keys, containers);
+    }
+
+    private static char[] readChars(final ByteBuffer input, final int length) {
+        final char[] result = new char[length];
+        input.asCharBuffer().get(result);
+        input.position(input.position() + length * Character.BYTES);
+        return result;
+    }
+
+    private static void writeChars(final DataOutputStream output, final char[] values) throws IOException {
+        for (final char value : values) {
+            output.writeChar(value);
+        }
+    }
+
+    // Creates the container for the words [from, to), or null if none of the bits is set
+    private static Container createContainer(final long[] words, final int from, final int to) {
+        int cardinality = 0;
+        int nrOfRuns = 0;
+        long carry = 0;
+        for (int i = from; i < to; i++) {
+            final long word = words[i];
+            cardinality += Long.bitCount(word);
+
+            // A run starts at every set bit following a cleared bit
+            nrOfRuns += Long.bitCount(word & ~(word << 1 | carry));
+            carry = word >>> 63;
+        }
+        if (cardinality == 0) {
+            return null;
+        }
+
+        if (nrOfRuns <= MAX_RUNS && 2 * nrOfRuns < cardinality) {
+            return RunContainer.create(words, from, to, nrOfRuns);
+        }
+        if (cardinality <= MAX_ARRAY_SIZE) {
+            return ArrayContainer.create(words, from, to, cardinality);
+        }
+        final long[] bitmap = new long[CHUNK_WORDS];
+        System.arraycopy(words, from, bitmap, 0, to - from);
+        return new BitmapContainer(bitmap, cardinality);
+    }
+
+    /**
+     * Returns the number of rules in this set.
+     * @return the cardinality
+     */
+    int getCardinality() {
+        return myCardinality;
+    }
+
+    /**
+     * Returns the number of chunks with rules.
+     * @return the number of containers
+     */
+    int getNrOfContainers() {
+        return myKeys.length;
+    }
+
+    /**
+     * Returns the chunk number of a container.
+     * @param index The index of the container
+     * @return the chunk number
+     */
+    int getKey(final int index) {
+        return myKeys[index];
+    }
+
+    /**
+     * Returns a container.
+     * @param index The index of the container
+     * @return the container
+     */
+    Container getContainer(final int index) {
+        return myContainers[index];
+    }
+
+    /**
+     * Adds the rules of a single block to the words of that block.
+     * @param words The words of the block
+     * @param block The block number
+     */
+    void orInto(final long[] words, final int block) {
+        final int key = block >>> CHUNK_BITS - BLOCK_BITS;
+        final Container container = key < myContainersByKey.length ? myContainersByKey[key] : null;
+        if (container != null) {
+            container.orInto(words, block & CHUNK_SIZE / BLOCK_SIZE - 1);
+        }
+    }
+
+    /**
+     * Removes the rules of a single block from the words of that block.
+     * @param words The words of the block
+     * @param block The block number
+     * @return <code>false</code> if the words are known to be empty now, <code>true</code> otherwise
+     */
+    boolean andNotInto(final long[] words, final int block) {
+        final int key = block >>> CHUNK_BITS - BLOCK_BITS;
+        final Container container = key < myContainersByKey.length ? myContainersByKey[key] : null;
+        return container == null || container.andNotInto(words, block & CHUNK_SIZE / BLOCK_SIZE - 1);
+    }
+
+    // Sets the bits [from, to] of the words
+    private static void setRange(final long[] words, final int from, final int to) {
+        final int first = from >>> 6;
+        final int last = to >>> 6;
+        final long firstMask = -1L << from;
+        final long lastMask = -1L >>> 63 - (to & 63);
+        if (first == last) {
+            words[first] |= firstMask & lastMask;
+            return;
+        }
+        words[first] |= firstMask;
+        for (int i = first + 1; i < last; i++) {
+            words[i] = -1L;
+        }
+        words[last] |= lastMask;
+    }
+
+    // Clears the bits [from, to] of the words
+    private static void clearRange(final long[] words, final int from, final int to) {
+        final int first = from >>> 6;
+        final int last = to >>> 6;
+        final long firstMask = -1L << from;
+        final long lastMask = -1L >>> 63 - (to & 63);
+        if (first == last) {
+            words[first] &= ~(firstMask & lastMask);
+            return;
+        }
+        words[first] &= ~firstMask;
+        for (int i = first + 1; i < last; i++) {
+            words[i] = 0;
+        }
+        words[last] &= ~lastMask;
+    }
+
+    /**
+     * The rules of a single chunk, which apply themselves to the words of a chunk of a mutable bitmap.
+     */
+    abstract static class Container {
+
+        abstract int getCardinality();
+
+        abstract void orInto(long[] words);
+
+        /**
+         * Removes the rules of this container from the words.
+         * @param words The words of the chunk
+         * @return <code>false</code> if the words are known to be empty now, <code>true</code> otherwise
+         */
+        abstract boolean andNotInto(long[] words);
+
+        /**
+         * Adds the rules of a single block of this container to the words.
+         * @param words The words of the block
+         * @param block The block number within the chunk
+         */
+        abstract void orInto(long[] words, int block);
+
+        /**
+         * Removes the rules of a single block of this container from the words.
+         * @param words The words of the block
+         * @param block The block number within the chunk
+         * @return <code>false</code> if the words are known to be empty now, <code>true</code> otherwise
+         */
+        abstract boolean andNotInto(long[] words, int block);
+
+        /**
+         * Writes the type and the contents of this container.
+         * @param output The output
+         * @throws IOException If writing failed
+         */
+        abstract void write(DataOutputStream output) throws IOException;
+    }
+
+    static class ArrayContainer extends Container {
+
+        static final byte TYPE = 0;
+
+        // The sorted values within the chunk
+        private final char[] myValues;
+
+        ArrayContainer(final char[] values) {
+            myValues = values;
+        }
+
+        static ArrayContainer create(final long[] words, final int from, final int to, final int cardinality) {
+            final char[] values = new char[cardinality];
+            int size = 0;
+            for (int i = from; i < to; i++) {
+                long word = words[i];
+                while (word != 0) {
+                    values[size++] = (char) ((i - from) * 64 + Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return new ArrayContainer(values);
+        }
+
+        @Override
+        int getCardinality() {
+            return myValues.length;
+        }
+
+        @Override
+        void orInto(final long[] words) {
+            for (final char value : myValues) {
+                words[value >>> 6] |= 1L << value;
+            }
+        }
+
+        @Override
+        boolean andNotInto(final long[] words) {
+            for (final char value : myValues) {
+                words[value >>> 6] &= ~(1L << value);
+            }
+            return true;
+        }
+
+        @Override
+        void orInto(final long[] words, final int block) {
+            final int first = block << BLOCK_BITS;
+            for (int i = getFirst(first); i < myValues.length && myValues[i] < first + BLOCK_SIZE; i++) {
+                words[(myValues[i] - first) >>> 6] |= 1L << myValues[i];
+            }
+        }
+
+        @Override
+        boolean andNotInto(final long[] words, final int block) {
+            final int first = block << BLOCK_BITS;
+            for (int i = getFirst(first); i < myValues.length && myValues[i] < first + BLOCK_SIZE; i++) {
+                words[(myValues[i] - first) >>> 6] &= ~(1L << myValues[i]);
+            }
+            return true;
+        }
+
+        @Override
+        void write(final DataOutputStream output) throws IOException {
+            output.writeByte(TYPE);
+            output.writeInt(myValues.length);
+            writeChars(output, myValues);
+        }
+
+        // Returns the index of the first value at or after the specified one
+        private int getFirst(final int value) {
+            final int index = Arrays.binarySearch(myValues, (char) value);
+            return index >= 0 ? index : -index - 1;
+        }
+    }
+
+    static class BitmapContainer extends Container {
+
+        static final byte TYPE = 2;
+
+        private final long[] myWords;
+        private final int myCardinality;
+
+        BitmapContainer(final long[] words, final int cardinality) {
+            myWords = words;
+            myCardinality = cardinality;
+        }
+
+        @Override
+        int getCardinality() {
+            return myCardinality;
+        }
+
+        @Override
+        void orInto(final long[] words) {
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                words[i] |= myWords[i];
+            }
+        }
+
+        @Override
+        boolean andNotInto(final long[] words) {
+            long remaining = 0;
+            for (int i = 0; i < CHUNK_WORDS; i++) {
+                final long word = words[i] & ~myWords[i];
+                words[i] = word;
+                remaining |= word;
+            }
+            return remaining != 0;
+        }
+
+        @Override
+        void orInto(final long[] words, final int block) {
+            final int offset = block * BLOCK_WORDS;
+            for (int i = 0; i < BLOCK_WORDS; i++) {
+                words[i] |= myWords[offset + i];
+            }
+        }
+
+        @Override
+        boolean andNotInto(final long[] words, final int block) {
+            final int offset = block * BLOCK_WORDS;
+            long remaining = 0;
+            for (int i = 0; i < BLOCK_WORDS; i++) {
+                final long word = words[i] & ~myWords[offset + i];
+                words[i] = word;
+                remaining |= word;
+            }
+            return remaining != 0;
+        }
+
+        @Override
+        void write(final DataOutputStream output) throws IOException {
+            output.writeByte(TYPE);
+            for (final long word : myWords) {
+                output.writeLong(word);
+            }
+        }
+    }
+
+    static class RunContainer extends Container {
+
+        static final byte TYPE = 1;
+
+        // The first value of each run and the inclusive last value, in ascending order
+        private final char[] myStarts;
+        private final char[] myEnds;
+        private final int myCardinality;
+
+        RunContainer(final char[] starts, final char[] ends) {
+            myStarts = starts;
+            myEnds = ends;
+
+            int cardinality = 0;
+            for (int i = 0; i < starts.length; i++) {
+                cardinality += ends[i] - starts[i] + 1;
+            }
+            myCardinality = cardinality;
+        }
+
+        static RunContainer create(final long[] words, final int from, final int to, final int nrOfRuns) {
+            final char[] starts = new char[nrOfRuns];
+            final char[] ends = new char[nrOfRuns];
+            int size = 0;
+            boolean inRun = false;
+            for (int i = from; i < to; i++) {
+                final long word = words[i];
+                if (word == 0 && !inRun || word == -1L && inRun) {
+                    continue;
+                }
+                for (int bit = 0; bit < 64; bit++) {
+                    final boolean set = (word & 1L << bit) != 0;
+                    if (set != inRun) {
+                        final char value = (char) ((i - from) * 64 + bit);
+                        if (set) {
+                            starts[size] = value;
+                        } else {
+                            ends[size++] = (char) (value - 1);
+                        }
+                        inRun = set;
+                    }
+                }
+            }
+            if (inRun) {
+                ends[size] = (char) ((to - from) * 64 - 1);
+            }
+            return new RunContainer(starts, ends);
+        }
+
+        @Override
+        int getCardinality() {
+            return myCardinality;
+        }
+
+        @Override
+        void orInto(final long[] words) {
+            for (int i = 0; i < myStarts.length; i++) {
+                setRange(words, myStarts[i], myEnds[i]);
+            }
+        }
+
+        @Override
+        boolean andNotInto(final long[] words) {
+            for (int i = 0; i < myStarts.length; i++) {
+                clearRange(words, myStarts[i], myEnds[i]);
+            }
+            return true;
+        }
+
+        @Override
+        void orInto(final long[] words, final int block) {
+            final int first = block << BLOCK_BITS;
+            final int last = first + BLOCK_SIZE - 1;
+            for (int i = 0; i < myStarts.length && myStarts[i] <= last; i++) {
+                if (myEnds[i] >= first) {
+                    setRange(words, Math.max(myStarts[i], first) - first, Math.min(myEnds[i], last) - first);
+                }
+            }
+        }
+
+        @Override
+        boolean andNotInto(final long[] words, final int block) {
+            final int first = block << BLOCK_BITS;
+            final int last = first + BLOCK_SIZE - 1;
+            for (int i = 0; i < myStarts.length && myStarts[i] <= last; i++) {
+                if (myEnds[i] >= first) {
+                    clearRange(words, Math.max(myStarts[i], first) - first, Math.min(myEnds[i], last) - first);
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void write(final DataOutputStream output) throws IOException {
+            output.writeByte(TYPE);
+            output.writeInt(myStarts.length);
+            writeChars(output, myStarts);
+            writeChars(output, myEnds);
+        }
+    }
+}
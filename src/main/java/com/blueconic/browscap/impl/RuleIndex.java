@@ -0,0 +1,164 @@
+package com.blueconic.browscap.impl;
+
+import com.blueconic.browscap.impl.LiteralAutomaton.IntList;
+
+/**
+ * Inverted index from literals to rules. Every rule is indexed under its rarest literal, which any matching useragent
+ * contains. When looking up a useragent, only the rules indexed under the literals found in the useragent are
+ * candidates, instead of all rules minus the ones discarded by filters.
+ */
+class RuleIndex {
+
+    private static final int[] EMPTY = new int[0];
+
+    // The compiled rules, ordered by priority
+    private final RuleTable myRules;
+
+    // For each literal, the ordered indices of the rules indexed under it
+    private final int[][] myPostings;
+
+    // The ordered indices of the rules without a literal suitable for indexing, e.g. the match all rule
+    private final int[] myUnindexed;
+
+    /**
+     * Creates the index for the specified rules.
+     * @param rules The rules, ordered by priority
+     * @param table The compiled rules, which are used for checking candidates
+     * @param automaton The automaton which is used for finding the literals in a useragent
+     */
+    RuleIndex(final Rule[] rules, final RuleTable table, final LiteralAutomaton automaton) {
+        myRules = table;
+
+        // Count the number of rules requiring each literal
+        int maxIndex = -1;
+        for (final Rule rule : rules) {
+            for (final Literal literal : rule.getLiterals()) {
+                maxIndex = Math.max(maxIndex, literal.getIndex());
+            }
+        }
+        final int[] frequencies = new int[maxIndex + 1];
+        for (final Rule rule : rules) {
+            for (final Literal literal : rule.getLiterals()) {
+                frequencies[literal.getIndex()]++;
+            }
+        }
+
+        // Index the rules under their rarest literal, the longest one in case of a tie
+        final IntList[] postings = new IntList[maxIndex + 1];
+        final IntList unindexed = new IntList();
+        for (int i = 0; i < rules.length; i++) {
+            Literal rarest = null;
+            for (final Literal literal : rules[i].getLiterals()) {
+                if (automaton.contains(literal) && (rarest == null || isRarer(literal, rarest, frequencies))) {
+                    rarest = literal;
+                }
+            }
+            if (rarest == null) {
+                unindexed.add(i);
+                continue;
+            }
+            final int index = rarest.getIndex();
+            if (postings[index] == null) {
+                postings[index] = new IntList();
+            }
+            postings[index].add(i);
+        }
+
+        myPostings = new int[postings.length][];
+        for (int i = 0; i < postings.length; i++) {
+            myPostings[i] = postings[i] == null ? EMPTY : postings[i].toArray();
+        }
+        myUnindexed = unindexed.toArray();
+    }
+
+    private static boolean isRarer(final Literal literal, final Literal other, final int[] frequencies) {
+        final int frequency = frequencies[literal.getIndex()];
+        final int otherFrequency = frequencies[other.getIndex()];
+        return frequency < otherFrequency || frequency == otherFrequency && literal.getLength() > other.getLength();
+    }
+
+    /**
+     * Returns the first matching rule. The posting lists of the literals found in the useragent are merged in
+     * priority order, so the search stops at the first match.
+     * @param value The useragent
+     * @param context The context providing the buffers
+     * @param limit The index of the first rule which isn't checked
+     * @return the index of the first matching rule, or -1 if no rule before the limit matches
+     */
+    int findMatch(final SearchableString value, final ParseContext context, final int limit) {
+
+        // Collect the non-empty posting lists
+        final int nrOfFound = value.getNrOfFoundLiterals();
+        final int[][] lists = context.getLists(nrOfFound + 1);
+        int nrOfLists = 0;
+        if (myUnindexed.length > 0) {
+            lists[nrOfLists++] = myUnindexed;
+        }
+        for (int i = 0; i < nrOfFound; i++) {
+            final int literal = value.getFoundLiteral(i);
+            if (literal < myPostings.length && myPostings[literal].length > 0) {
+                lists[nrOfLists++] = myPostings[literal];
+            }
+        }
+
+        // Merge the lists using a min heap of list numbers ordered by their current rule
+        final int[] positions = context.getBuffer(ParseContext.POSITIONS, nrOfLists);
+        final int[] heap = context.getBuffer(ParseContext.HEAP, nrOfLists);
+        for (int i = 0; i < nrOfLists; i++) {
+            positions[i] = 0;
+            heap[i] = i;
+        }
+        for (int i = nrOfLists / 2 - 1; i >= 0; i--) {
+            siftDown(heap, i, nrOfLists, lists, positions);
+        }
+
+        int size = nrOfLists;
+        while (size > 0) {
+            final int list = heap[0];
+            final int rule = lists[list][positions[list]];
+            if (rule >= limit) {
+                return -1;
+            }
+            if (myRules.matches(rule, value)) {
+                return rule;
+            }
+
+            // Advance the list, or remove it from the heap when exhausted
+            positions[list]++;
+            if (positions[list] == lists[list].length) {
+                heap[0] = heap[--size];
+            }
+            if (size > 0) {
+                siftDown(heap, 0, size, lists, positions);
+            }
+        }
+        return -1;
+    }
+
+    private static void siftDown(final int[] heap, final int from, final int size, final int[][] lists,
+            final int[] positions) {
+        int index = from;
+        final int list = heap[index];
+        final int value = lists[list][positions[list]];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && current(heap[child + 1], lists, positions) < current(heap[child], lists,
+                    positions)) {
+                child++;
+            }
+            if (current(heap[child], lists, positions) >= value) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = list;
+    }
+
+    private static int current(final int list, final int[][] lists, final int[] positions) {
+        return lists[list][positions[list]];
+    }
+}
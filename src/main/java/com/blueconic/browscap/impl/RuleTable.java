@@ -0,0 +1,366 @@
+package com.blueconic.browscap.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import com.blueconic.browscap.Capabilities;
+import com.blueconic.browscap.impl.LiteralAutomaton.IntList;
+
+/**
+ * The rules compiled into flat arrays of literal indices, ordered by priority. Checking a rule only reads primitive
+ * arrays and the literals, instead of following the references of rule objects scattered over the heap, and the rule
+ * objects aren't needed anymore after compiling them.
+ */
+class RuleTable {
+
+    // The literal index of a missing prefix or postfix, and the number of suffixes of a pattern without wildcards
+    static final int NONE = -1;
+
+    // The literals of the rules by index
+    private final Literal[] myLiterals;
+
+    // The literal indices of the prefix and postfix of each rule
+    private final int[] myPrefixes;
+    private final int[] myPostfixes;
+
+    // The number of suffixes of rule i is stored in the pool at mySuffixOffsets[i], followed by their literal indices
+    private final int[] mySuffixOffsets;
+    private final int[] mySuffixPool;
+
+    // The bigram signature of the literals of each rule, which a matching useragent's signature contains as well
+    private final long[] mySignatures;
+
+    // The patterns of the rules with the substitute character in a literal by rule index, null if there are none
+    private String[] mySubstitutePatterns;
+
+    // The index of the capabilities of each rule, and the distinct capabilities
+    private final int[] myCapabilityIds;
+    private final Capabilities[] myCapabilities;
+
+    /**
+     * Compiles the specified rules.
+     * @param rules The rules, ordered by priority
+     */
+    RuleTable(final Rule[] rules) {
+        int maxIndex = -1;
+        for (final Rule rule : rules) {
+            for (final Literal literal : rule.getLiterals()) {
+                maxIndex = Math.max(maxIndex, literal.getIndex());
+            }
+        }
+        myLiterals = new Literal[maxIndex + 1];
+
+        myPrefixes = new int[rules.length];
+        myPostfixes = new int[rules.length];
+        mySuffixOffsets = new int[rules.length];
+        myCapabilityIds = new int[rules.length];
+        mySignatures = new long[rules.length];
+
+        final IntList pool = new IntList();
+        final Map<Capabilities, Integer> capabilityIds = new IdentityHashMap<>();
+        final List<Capabilities> capabilities = new ArrayList<>();
+        for (int i = 0; i < rules.length; i++) {
+            final Rule rule = rules[i];
+            myPrefixes[i] = add(rule.getPrefix());
+            myPostfixes[i] = add(rule.getPostfix());
+
+            final Literal[] suffixes = rule.getSuffixes();
+            mySuffixOffsets[i] = pool.size();
+            pool.add(suffixes == null ? NONE : suffixes.length);
+            if (suffixes != null) {
+                for (final Literal suffix : suffixes) {
+                    pool.add(add(suffix));
+                }
+            }
+
+            long signature = 0;
+            for (final Literal literal : rule.getLiterals()) {
+                signature |= literal.getSignature();
+                if (literal.hasSubstitute()) {
+                    if (mySubstitutePatterns == null) {
+                        mySubstitutePatterns = new String[rules.length];
+                    }
+                    mySubstitutePatterns[i] = rule.getPattern();
+                }
+            }
+            mySignatures[i] = signature;
+
+            // Capabilities are shared by many rules
+            final Capabilities ruleCapabilities = rule.getCapabilities();
+            Integer id = capabilityIds.get(ruleCapabilities);
+            if (id == null) {
+                id = capabilities.size();
+                capabilityIds.put(ruleCapabilities, id);
+                capabilities.add(ruleCapabilities);
+            }
+            myCapabilityIds[i] = id;
+        }
+        mySuffixPool = pool.toArray();
+        myCapabilities = capabilities.toArray(new Capabilities[0]);
+    }
+
+    private int add(final Literal literal) {
+        if (literal == null) {
+            return NONE;
+        }
+        myLiterals[literal.getIndex()] = literal;
+        return literal.getIndex();
+    }
+
+    /**
+     * Returns the number of rules.
+     * @return the number of rules
+     */
+    int getSize() {
+        return myPrefixes.length;
+    }
+
+    /**
+     * Returns the prefix of a rule.
+     * @param rule The index of the rule
+     * @return the prefix, possibly <code>null</code>
+     */
+    Literal getPrefix(final int rule) {
+        return getLiteral(myPrefixes[rule]);
+    }
+
+    /**
+     * Tests whether a rule has no wildcards, in which case its pattern is its prefix.
+     * @param rule The index of the rule
+     * @return <code>true</code> if the pattern doesn't contain wildcards, <code>false</code> otherwise
+     */
+    boolean isExact(final int rule) {
+        return myPrefixes[rule] != NONE && myPostfixes[rule] == NONE && mySuffixPool[mySuffixOffsets[rule]] == NONE;
+    }
+
+    /**
+     * Returns the minimum length of a useragent matching a rule, which is the total length of its literals.
+     * @param rule The index of the rule
+     * @return the minimum length
+     */
+    int getMinLength(final int rule) {
+        int result = getLength(myPrefixes[rule]) + getLength(myPostfixes[rule]);
+        final int offset = mySuffixOffsets[rule];
+        for (int i = offset + 1; i <= offset + mySuffixPool[offset]; i++) {
+            result += myLiterals[mySuffixPool[i]].getLength();
+        }
+        return result;
+    }
+
+    private int getLength(final int index) {
+        return index == NONE ? 0 : myLiterals[index].getLength();
+    }
+
+    private Literal getLiteral(final int index) {
+        return index == NONE ? null : myLiterals[index];
+    }
+
+    /**
+     * Returns the capabilities of a rule.
+     * @param rule The index of the rule
+     * @return the capabilities
+     */
+    Capabilities getCapabilities(final int rule) {
+        return myCapabilities[myCapabilityIds[rule]];
+    }
+
+    /**
+     * Returns the id of the capabilities of a rule. The distinct capabilities are numbered in order of the first rule
+     * which has them.
+     * @param rule The index of the rule
+     * @return the id of the capabilities
+     */
+    int getCapabilitiesId(final int rule) {
+        return myCapabilityIds[rule];
+    }
+
+    /**
+     * Returns the capabilities with the specified id.
+     * @param id The id of the capabilities
+     * @return the capabilities
+     */
+    Capabilities getCapabilitiesById(final int id) {
+        return myCapabilities[id];
+    }
+
+    /**
+     * Returns the id of the specified capabilities.
+     * @param capabilities The capabilities
+     * @return the id, or -1 if no rule has the capabilities
+     */
+    int getCapabilitiesId(final Capabilities capabilities) {
+        for (int i = 0; i < myCapabilities.length; i++) {
+            if (myCapabilities[i] == capabilities) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the number of distinct capabilities of the rules.
+     * @return the number of capabilities
+     */
+    int getNrOfCapabilities() {
+        return myCapabilities.length;
+    }
+
+    /**
+     * Returns the literals of the rules meeting a predicate. Testing each distinct literal once is much cheaper than
+     * testing the literals of every rule, as the rules share most of their literals.
+     * @param predicate The predicate
+     * @return the indices of the literals
+     */
+    BitSet getLiterals(final Predicate<Literal> predicate) {
+        final BitSet result = new BitSet(myLiterals.length);
+        for (int i = 0; i < myLiterals.length; i++) {
+            if (myLiterals[i] != null && predicate.test(myLiterals[i])) {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Tests whether a rule has any of the specified literals.
+     * @param rule The index of the rule
+     * @param literals The indices of the literals
+     * @return <code>true</code> if the prefix, the postfix or any suffix is one of the literals, false otherwise
+     */
+    boolean hasLiteral(final int rule, final BitSet literals) {
+        if (hasPrefix(rule, literals) || has(myPostfixes[rule], literals)) {
+            return true;
+        }
+
+        final int offset = mySuffixOffsets[rule];
+        final int end = offset + 1 + Math.max(0, mySuffixPool[offset]);
+        for (int i = offset + 1; i < end; i++) {
+            if (literals.get(mySuffixPool[i])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tests whether the prefix of a rule is one of the specified literals.
+     * @param rule The index of the rule
+     * @param literals The indices of the literals
+     * @return <code>true</code> if the rule has one of the literals as prefix, false otherwise
+     */
+    boolean hasPrefix(final int rule, final BitSet literals) {
+        return has(myPrefixes[rule], literals);
+    }
+
+    private static boolean has(final int index, final BitSet literals) {
+        return index != NONE && literals.get(index);
+    }
+
+    /**
+     * Tests whether a rule matches the useragent.
+     * @param rule The index of the rule
+     * @param value The useragent
+     * @return <code>true</code> if the rule matches, <code>false</code> otherwise
+     */
+    boolean matches(final int rule, final SearchableString value) {
+        if (!matchesBytes(rule, value)) {
+            return false;
+        }
+
+        // Different characters beyond Latin-1 have the same byte, so a rule with such characters may only match by its
+        // bytes if the useragent has them as well
+        if (mySubstitutePatterns != null && value.hasSubstitute()) {
+            final String pattern = mySubstitutePatterns[rule];
+            return pattern == null || matchesCharacters(pattern, value);
+        }
+        return true;
+    }
+
+    private boolean matchesBytes(final int rule, final SearchableString value) {
+
+        // Reject the rule if the useragent lacks a bigram of its literals, without checking the literals
+        if ((mySignatures[rule] & ~value.getSignature()) != 0) {
+            return false;
+        }
+
+        // Inclusive
+        final int start;
+        final int prefix = myPrefixes[rule];
+        if (prefix == NONE) {
+            start = 0;
+        } else if (value.startsWith(myLiterals[prefix])) {
+            start = myLiterals[prefix].getLength();
+        } else {
+            return false;
+        }
+
+        // Inclusive
+        final int end;
+        final int postfix = myPostfixes[rule];
+        if (postfix == NONE) {
+            end = value.getSize() - 1;
+        } else if (value.endsWith(myLiterals[postfix])) {
+            end = value.getSize() - 1 - myLiterals[postfix].getLength();
+        } else {
+            return false;
+        }
+
+        final int offset = mySuffixOffsets[rule];
+        final int nrOfSuffixes = mySuffixPool[offset];
+        if (nrOfSuffixes == NONE) {
+            // No wildcards
+            return start == end + 1;
+        }
+
+        int from = start;
+        for (int i = offset + 1; i <= offset + nrOfSuffixes; i++) {
+            final Literal suffix = myLiterals[mySuffixPool[i]];
+            final int match = value.indexOf(suffix, from);
+            if (match == -1) {
+                return false;
+            }
+
+            from = suffix.getLength() + match;
+            if (from > end + 1) {
+                return false;
+            }
+        }
+
+        // Also covers a single wildcard
+        return start <= end + 1;
+    }
+
+    // Tests whether the pattern matches the complete value, with a question mark matching any character and an
+    // asterisk any number of characters
+    private static boolean matchesCharacters(final String pattern, final SearchableString value) {
+        int p = 0;
+        int v = 0;
+
+        // The position after the last asterisk, and the position in the value it was matched to
+        int star = -1;
+        int mark = 0;
+        while (v < value.getSize()) {
+            if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == value.getCharacter(v))) {
+                p++;
+                v++;
+            } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                star = ++p;
+                mark = v;
+            } else if (star >= 0) {
+                // Let the last asterisk match one more character
+                p = star;
+                v = ++mark;
+            } else {
+                return false;
+            }
+        }
+        while (p < pattern.length() && pattern.charAt(p) == '*') {
+            p++;
+        }
+        return p == pattern.length();
+    }
+}
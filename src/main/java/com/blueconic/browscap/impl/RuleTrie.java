@@ -0,0 +1,336 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.impl.RuleBitmap.BLOCK_BITS;
+import static com.blueconic.browscap.impl.RuleBitmap.BLOCK_SIZE;
+import static java.util.Arrays.binarySearch;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.blueconic.browscap.impl.LiteralAutomaton.IntList;
+
+/**
+ * Character trie over the prefixes or the postfixes of the rules. A single walk over the start or the end of a
+ * useragent determines all rules whose prefix or postfix matches, instead of checking each rule separately. Postfixes
+ * are stored reversed, so the useragent is walked backwards. The walk only determines the matching nodes, so their rules
+ * can be added per block of rules, and only for the blocks which are checked.
+ */
+class RuleTrie {
+
+    private static final int ROOT = 0;
+
+    // Nodes with at least this number of rules keep their rules as a mask
+    static final int MASK_THRESHOLD = 4096;
+
+    // The children of node n are the nodes [myFirstChild[n], myFirstChild[n + 1]), ordered by their label
+    private final int[] myFirstChild;
+    private final char[] myLabels;
+
+    // The rules whose prefix ends at node n are stored at [myFirstRule[n], myFirstRule[n + 1])
+    private final int[] myFirstRule;
+    private final int[] myRules;
+
+    // Masks replacing the rule lists of nodes with many rules, or null
+    private final RuleBitmap[] myMasks;
+
+    // The rules without a key, which match regardless of the useragent, and the other rules
+    private final RuleBitmap myUnconstrained;
+    private final RuleBitmap myConstrained;
+
+    // The number of rules
+    private final int mySize;
+
+    // Whether the keys are postfixes, which are matched from the end of the useragent
+    private final boolean myIsReversed;
+
+    /**
+     * Creates the trie for the prefixes of the specified rules.
+     * @param rules The rules, ordered by priority
+     * @return the trie
+     */
+    static RuleTrie forPrefixes(final Rule[] rules) {
+        return new RuleTrie(rules, RuleTrie::getPrefixKey, false);
+    }
+
+    /**
+     * Creates the trie for the postfixes of the specified rules. A rule without wildcards should end with its pattern
+     * as well, so it is treated as a postfix too.
+     * @param rules The rules, ordered by priority
+     * @return the trie
+     */
+    static RuleTrie forPostfixes(final Rule[] rules) {
+        return new RuleTrie(rules, RuleTrie::getPostfixKey, true);
+    }
+
+    /**
+     * Returns the key of a rule in the trie for prefixes.
+     * @param rule The rule
+     * @return the prefix, or <code>null</code> if the rule starts with a wildcard
+     */
+    static String getPrefixKey(final Rule rule) {
+        final Literal prefix = rule.getPrefix();
+        return prefix == null ? null : Literal.fold(prefix.toString());
+    }
+
+    /**
+     * Returns the key of a rule in the trie for postfixes.
+     * @param rule The rule
+     * @return the reversed postfix, or <code>null</code> if the rule ends with a wildcard
+     */
+    static String getPostfixKey(final Rule rule) {
+        final Literal postfix = rule.getSuffixes() == null ? rule.getPrefix() : rule.getPostfix();
+        return postfix == null ? null : new StringBuilder(Literal.fold(postfix.toString())).reverse().toString();
+    }
+
+    private RuleTrie(final Rule[] rules, final Function<Rule, String> keyFunction, final boolean reversed) {
+        myIsReversed = reversed;
+        mySize = rules.length;
+
+        // Group the rules by their key
+        final BitSet unconstrained = new BitSet(rules.length);
+        final Map<String, IntList> rulesByKey = new HashMap<>();
+        for (int i = 0; i < rules.length; i++) {
+            final String key = keyFunction.apply(rules[i]);
+            if (key == null) {
+                unconstrained.set(i);
+            } else {
+                rulesByKey.computeIfAbsent(key, k -> new IntList()).add(i);
+            }
+        }
+        myUnconstrained = RuleBitmap.of(unconstrained);
+        unconstrained.flip(0, rules.length);
+        myConstrained = RuleBitmap.of(unconstrained);
+        final List<String> keys = new ArrayList<>(rulesByKey.keySet());
+        keys.sort(null);
+
+        // Create the trie breadth first, every node is represented by a range of sorted keys sharing a prefix
+        final IntList rangeStart = new IntList();
+        final IntList rangeEnd = new IntList();
+        final IntList depth = new IntList();
+        final IntList firstChild = new IntList();
+        final IntList firstRule = new IntList();
+        final IntList ruleIds = new IntList();
+        final StringBuilder labels = new StringBuilder();
+
+        rangeStart.add(0);
+        rangeEnd.add(keys.size());
+        depth.add(0);
+        labels.append('\0');
+
+        final List<RuleBitmap> masks = new ArrayList<>();
+        for (int node = 0; node < depth.size(); node++) {
+            final int d = depth.get(node);
+            final int end = rangeEnd.get(node);
+            int i = rangeStart.get(node);
+
+            // Keys ending at this node sort first, keys are unique
+            firstRule.add(ruleIds.size());
+            RuleBitmap mask = null;
+            if (i < end && keys.get(i).length() == d) {
+                final IntList ids = rulesByKey.get(keys.get(i));
+                if (ids.size() >= MASK_THRESHOLD) {
+                    final BitSet bits = new BitSet(rules.length);
+                    for (int j = 0; j < ids.size(); j++) {
+                        bits.set(ids.get(j));
+                    }
+                    mask = RuleBitmap.of(bits);
+                } else {
+                    for (int j = 0; j < ids.size(); j++) {
+                        ruleIds.add(ids.get(j));
+                    }
+                }
+                i++;
+            }
+            masks.add(mask);
+
+            // Group the remaining keys by their next character
+            firstChild.add(depth.size());
+            while (i < end) {
+                final char c = keys.get(i).charAt(d);
+                final int start = i;
+                while (i < end && keys.get(i).charAt(d) == c) {
+                    i++;
+                }
+                rangeStart.add(start);
+                rangeEnd.add(i);
+                depth.add(d + 1);
+                labels.append(c);
+            }
+        }
+        firstChild.add(depth.size());
+        firstRule.add(ruleIds.size());
+
+        myFirstChild = firstChild.toArray();
+        myLabels = labels.toString().toCharArray();
+        myFirstRule = firstRule.toArray();
+        myRules = ruleIds.toArray();
+        myMasks = masks.toArray(new RuleBitmap[0]);
+    }
+
+    /**
+     * Returns all rules that don't have a key or whose key matches the start (or the end) of the useragent.
+     * @param value The useragent
+     * @return the matching rules
+     */
+    MutableRuleBitmap getMatches(final SearchableString value) {
+        final MutableRuleBitmap result = new MutableRuleBitmap(mySize);
+        getMatches(value, result, new ParseContext(value, mySize));
+        return result;
+    }
+
+    /**
+     * Adds all rules that don't have a key or whose key matches the start (or the end) of the useragent.
+     * @param value The useragent
+     * @param result The set to add the matching rules to
+     * @param context The context providing the buffers
+     */
+    void getMatches(final SearchableString value, final MutableRuleBitmap result, final ParseContext context) {
+        result.or(myUnconstrained);
+        addMatches(value, result, context);
+    }
+
+    /**
+     * Removes the rules with a key that doesn't match the start (or the end) of the useragent. This is cheaper than
+     * intersecting with the result of {@link #getMatches(SearchableString)} when most rules don't have a key.
+     * @param value The useragent
+     * @param result The rules to retain the matching rules of
+     * @param context The context providing the buffers
+     */
+    void retainMatches(final SearchableString value, final MutableRuleBitmap result, final ParseContext context) {
+        final MutableRuleBitmap matches = context.getMatches();
+        addMatches(value, matches, context);
+        matches.and(result);
+        result.andNot(myConstrained);
+        result.or(matches);
+    }
+
+    /**
+     * Adds the rules of a block that don't have a key or whose key matches the start (or the end) of the useragent. The
+     * blocks should be requested in ascending order, as the position in the rules of each node is advanced.
+     * @param words The words of the block
+     * @param block The block number
+     * @param nodes The matching nodes and their positions, as found by
+     *            {@link #findNodes(SearchableString, ParseContext, int)}
+     * @param nrOfNodes The number of matching nodes
+     */
+    void orInto(final long[] words, final int block, final int[] nodes, final int nrOfNodes) {
+        myUnconstrained.orInto(words, block);
+        final int first = block << BLOCK_BITS;
+        for (int i = 0; i < 2 * nrOfNodes; i += 2) {
+            final int node = nodes[i];
+            final RuleBitmap mask = myMasks[node];
+            if (mask != null) {
+                mask.orInto(words, block);
+                continue;
+            }
+
+            // The rules of a node are ascending, so the ones of previous blocks are skipped only once
+            int position = nodes[i + 1];
+            final int end = myFirstRule[node + 1];
+            while (position < end && myRules[position] < first) {
+                position++;
+            }
+            while (position < end && myRules[position] < first + BLOCK_SIZE) {
+                final int rule = myRules[position++];
+                words[(rule - first) >>> 6] |= 1L << rule;
+            }
+            nodes[i + 1] = position;
+        }
+    }
+
+    /**
+     * Finds the nodes with rules whose key matches the start (or the end) of the useragent. Each node is stored with
+     * the position of its first rule, which {@link #orInto(long[], int, int[], int)} advances.
+     * @param value The useragent
+     * @param context The context providing the buffers
+     * @param buffer The buffer to store the nodes and positions in, e.g. {@link ParseContext#PREFIX_NODES}
+     * @return the number of nodes
+     */
+    int findNodes(final SearchableString value, final ParseContext context, final int buffer) {
+
+        // Question marks in a key match any character, so multiple nodes may be active
+        int activeBuffer = ParseContext.NODES;
+        int nextBuffer = ParseContext.NEXT_NODES;
+        int[] active = context.getBuffer(activeBuffer, 1);
+        active[0] = ROOT;
+        int nrOfActive = 1;
+        int[] result = context.getBuffer(buffer, 2);
+        int nrOfResults = 0;
+        final int size = value.getSize();
+        for (int i = 0; nrOfActive > 0; i++) {
+            int[] next = context.getBuffer(nextBuffer, 2);
+            int nrOfNext = 0;
+            for (int a = 0; a < nrOfActive; a++) {
+                final int node = active[a];
+                if (myMasks[node] != null || myFirstRule[node] < myFirstRule[node + 1]) {
+                    result = context.getBuffer(buffer, 2 * nrOfResults + 2);
+                    result[2 * nrOfResults] = node;
+                    result[2 * nrOfResults + 1] = myFirstRule[node];
+                    nrOfResults++;
+                }
+                if (i == size) {
+                    continue;
+                }
+
+                final char c = value.charAt(myIsReversed ? size - 1 - i : i);
+                final int child = findChild(node, c);
+                final int anyChild = c == '?' ? -1 : findChild(node, '?');
+                if (nrOfNext + 2 > next.length) {
+                    next = context.getBuffer(nextBuffer, nrOfNext + 2);
+                }
+                if (child >= 0) {
+                    next[nrOfNext++] = child;
+                }
+                if (anyChild >= 0) {
+                    next[nrOfNext++] = anyChild;
+                }
+            }
+
+            nextBuffer = activeBuffer;
+            activeBuffer = activeBuffer == ParseContext.NODES ? ParseContext.NEXT_NODES : ParseContext.NODES;
+            active = next;
+            nrOfActive = nrOfNext;
+        }
+        return nrOfResults;
+    }
+
+    // Adds the rules of all nodes matching the useragent
+    private void addMatches(final SearchableString value, final MutableRuleBitmap result, final ParseContext context) {
+        final int nrOfNodes = findNodes(value, context, ParseContext.PREFIX_NODES);
+        final int[] nodes = context.getBuffer(ParseContext.PREFIX_NODES, 0);
+        for (int i = 0; i < nrOfNodes; i++) {
+            addRules(nodes[2 * i], result);
+        }
+    }
+
+    private void addRules(final int node, final MutableRuleBitmap result) {
+        final RuleBitmap mask = myMasks[node];
+        if (mask != null) {
+            result.or(mask);
+            return;
+        }
+        for (int i = myFirstRule[node]; i < myFirstRule[node + 1]; i++) {
+            result.set(myRules[i]);
+        }
+    }
+
+    // Returns the child for the specified character, or -1 if there's no such child
+    private int findChild(final int node, final char c) {
+        final int from = myFirstChild[node];
+        final int to = myFirstChild[node + 1];
+        if (to - from < 8) {
+            for (int i = from; i < to; i++) {
+                if (myLabels[i] == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        final int found = binarySearch(myLabels, from, to, c);
+        return found >= 0 ? found : -1;
+    }
+}
@@ -1,36 +1,208 @@
 package com.blueconic.browscap.impl;
 
-import java.util.BitSet;
-import java.util.HashSet;
-import java.util.Set;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.util.Arrays.copyOf;
+import static java.util.Arrays.sort;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import com.blueconic.browscap.impl.LiteralAutomaton.MatchConsumer;
+
 /**
- * This class represents a searchable useragent strings. It relies and simple char arrays for low memory use and fast
- * operations. It provided methods for finding substrings and provides caches for better performance.
+ * This class represents a searchable useragent strings. It relies and simple byte arrays for low memory use and fast
+ * operations, see {@link Literal#toByte(char)}. It provided methods for finding substrings and provides caches for
+ * better performance. An instance can be reset to another useragent, which reuses all of its buffers.
  */
 class SearchableString {
 
     private static final int[] EMPTY = new int[0];
     private static final int[][] SINGLE_VALUES = getSingleValues();
 
-    private final char[] myChars;
-    private final int[][] myIndices;
-    private final Cache myPrefixCache = new Cache();
-    private final Cache myPostfixCache = new Cache();
+    // The number of literals searched for individually, before all literals are searched for in a single pass
+    static final int LAZY_LOOKUPS = 4;
+
+    // The initial number of slots of the literal table, a power of two
+    private static final int INITIAL_CAPACITY = 64;
+
+    // In Turkic locales, String.toLowerCase maps 'I' to a dotless i, so ASCII values can't be converted per character
+    private static final boolean IS_ASCII_LOWER_CASE_SAFE = "I".toLowerCase().equals("i");
+
+    // The offset of a literal whose indices haven't been searched yet, as only its prefix or postfix flags are known
+    private static final int UNSEARCHED = -1;
+
+    // The flags of a literal in the table, indicating whether it's known to be a prefix or postfix, and whether it is
+    private static final byte IS_PREFIX_KNOWN = 1;
+    private static final byte IS_PREFIX = 2;
+    private static final byte IS_POSTFIX_KNOWN = 4;
+    private static final byte IS_POSTFIX = 8;
+
+    private byte[] myBytes;
+    private int mySize;
+
+    // Whether a byte is the substitute character, and the useragent if it contains characters beyond Latin-1, as its
+    // bytes don't represent those characters
+    private boolean myHasSubstitute;
+    private String myWideValue;
+
+    // Open addressing table from literal index to the offset of its indices in the pool and its prefix and postfix
+    // flags, so its size depends on the number of literals looked up instead of on the size of the domain. A slot is
+    // only in use if its stamp equals the epoch, which is increased on every reset, so the table doesn't have to be
+    // cleared.
+    private int myEpoch;
+    private int[] myStamps = new int[INITIAL_CAPACITY];
+    private int[] myKeys = new int[INITIAL_CAPACITY];
+    private int[] myOffsets = new int[INITIAL_CAPACITY];
+    private byte[] myFlags = new byte[INITIAL_CAPACITY];
+    private int myShift = 32 - Integer.numberOfTrailingZeros(INITIAL_CAPACITY);
+    private int myNrOfEntries;
+
+    // The arrays returned by getIndices per slot, null if not created yet
+    private int[][] myArrays = new int[INITIAL_CAPACITY][];
+
+    // The number of indices of a literal is stored in the pool at its offset, followed by the indices
+    private int[] myPool = new int[64];
+    private int myPoolSize;
+
+    // The signature of the bigrams of the value, computed when first needed
+    private long mySignature;
+    private boolean myHasSignature;
+
+    // The automaton for finding all literals at once, potentially null
+    private final LiteralAutomaton myAutomaton;
+    private int myNrOfLookups;
+    private boolean myIsScanned;
+
+    // The matches of a single pass, encoded as literal index and start position
+    private final MatchConsumer myMatchConsumer = this::addMatch;
+    private long[] myMatches = new long[16];
+    private int myNrOfMatches;
+
+    // The indices of the literals found in the single pass
+    private int[] myFoundLiterals = new int[16];
+    private int myNrOfFoundLiterals;
 
-    // Reusable buffer for findIndices
-    private final int[] myBuffer;
+    /**
+     * Creates a new instance for the specified string value.
+     * @param stringValue The user agent string
+     */
+    SearchableString(final String stringValue) {
+        this(stringValue, null);
+    }
 
     /**
      * Creates a new instance for the specified string value.
      * @param stringValue The user agent string
-     * @param maxIndex The number of unique literals
+     * @param automaton The automaton for finding all literals in a single pass, potentially <code>null</code>
      */
-    SearchableString(final String stringValue, final int maxIndex) {
-        myChars = stringValue.toCharArray();
-        myIndices = new int[maxIndex][];
-        myBuffer = new int[myChars.length];
+    SearchableString(final String stringValue, final LiteralAutomaton automaton) {
+        myBytes = new byte[stringValue.length()];
+        myAutomaton = automaton;
+        reset(stringValue);
+    }
+
+    /**
+     * Reuses this instance for another string value. All cached results are discarded.
+     * @param stringValue The user agent string
+     */
+    void reset(final String stringValue) {
+        mySize = stringValue.length();
+        ensureCapacity();
+        boolean isWide = false;
+        boolean hasSubstitute = false;
+        for (int i = 0; i < mySize; i++) {
+            final char c = stringValue.charAt(i);
+            isWide |= c >= 256;
+            hasSubstitute |= c == Literal.SUBSTITUTE;
+            myBytes[i] = Literal.toByte(c);
+        }
+        myHasSubstitute = isWide || hasSubstitute;
+        myWideValue = isWide ? stringValue : null;
+        clear();
+    }
+
+    /**
+     * Reuses this instance for the lower case representation of another string value. All cached results are
+     * discarded. Plain ASCII values are converted without creating an intermediate string.
+     * @param stringValue The user agent string
+     */
+    void resetToLowerCase(final CharSequence stringValue) {
+        if (!IS_ASCII_LOWER_CASE_SAFE) {
+            reset(stringValue.toString().toLowerCase());
+            return;
+        }
+
+        mySize = stringValue.length();
+        ensureCapacity();
+        boolean hasSubstitute = false;
+        for (int i = 0; i < mySize; i++) {
+            final char c = stringValue.charAt(i);
+            if (c >= 128) {
+                reset(stringValue.toString().toLowerCase());
+                return;
+            }
+            hasSubstitute |= c == Literal.SUBSTITUTE;
+            myBytes[i] = (byte) (c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c);
+        }
+        myHasSubstitute = hasSubstitute;
+        myWideValue = null;
+        clear();
+    }
+
+    /**
+     * Reuses this instance for the lower case representation of an ISO-8859-1 encoded value. All cached results are
+     * discarded. The bytes are converted without creating an intermediate string.
+     * @param bytes The buffer with the user agent
+     * @param offset The offset of the user agent in the buffer
+     * @param length The length of the user agent
+     */
+    void resetToLowerCase(final byte[] bytes, final int offset, final int length) {
+        if (!IS_ASCII_LOWER_CASE_SAFE) {
+            reset(new String(bytes, offset, length, ISO_8859_1).toLowerCase());
+            return;
+        }
+
+        // Every byte is a character, and lower case ISO-8859-1 characters remain in the range of a byte
+        mySize = length;
+        ensureCapacity();
+        boolean hasSubstitute = false;
+        for (int i = 0; i < length; i++) {
+            final byte b = bytes[offset + i];
+            if (b >= 'A' && b <= 'Z') {
+                myBytes[i] = (byte) (b + ('a' - 'A'));
+            } else if (b < 0) {
+                myBytes[i] = Literal.toByte(Character.toLowerCase((char) (b & 0xFF)));
+            } else {
+                hasSubstitute |= b == Literal.SUBSTITUTE;
+                myBytes[i] = b;
+            }
+        }
+        myHasSubstitute = hasSubstitute;
+        myWideValue = null;
+        clear();
+    }
+
+    private void ensureCapacity() {
+        if (mySize > myBytes.length) {
+            myBytes = new byte[Math.max(mySize, 2 * myBytes.length)];
+        }
+    }
+
+    private void clear() {
+        if (++myEpoch == Integer.MAX_VALUE) {
+            Arrays.fill(myStamps, 0);
+            myEpoch = 1;
+        }
+        myNrOfEntries = 0;
+        // The first entry of the pool represents all literals which aren't found
+        myPool[0] = 0;
+        myPoolSize = 1;
+        myNrOfLookups = 0;
+        myIsScanned = false;
+        myHasSignature = false;
+        myNrOfFoundLiterals = 0;
     }
 
     /**
@@ -38,7 +210,47 @@ class SearchableString {
      * @return The size
      */
     int getSize() {
-        return myChars.length;
+        return mySize;
+    }
+
+    /**
+     * Indicates whether this instance contains the substitute character, which represents all characters beyond
+     * Latin-1, see {@link Literal#toByte(char)}. Only then a rule with such characters may match by its bytes without
+     * matching by its characters.
+     * @return <code>true</code> if a byte is the substitute character, <code>false</code> otherwise
+     */
+    boolean hasSubstitute() {
+        return myHasSubstitute;
+    }
+
+    /**
+     * Returns the character at the specified index, also if it's beyond Latin-1 and not represented by its byte.
+     * @param index The index of the character
+     * @return the character
+     */
+    char getCharacter(final int index) {
+        return myWideValue != null ? myWideValue.charAt(index) : charAt(index);
+    }
+
+    /**
+     * Returns the character at the specified index.
+     * @param index The index of the character
+     * @return the character
+     */
+    char charAt(final int index) {
+        return (char) (myBytes[index] & 0xFF);
+    }
+
+    /**
+     * Returns the signature of all bigrams of this instance, see {@link Literal#getSignature(byte[], int, int)}.
+     * @return the signature
+     */
+    long getSignature() {
+        if (!myHasSignature) {
+            mySignature = Literal.getSignature(myBytes, 0, mySize);
+            myHasSignature = true;
+        }
+        return mySignature;
     }
 
     /**
@@ -49,15 +261,15 @@ class SearchableString {
     boolean startsWith(final Literal literal) {
 
         // Check whether the answer is already in the cache
-        final int index = literal.getIndex();
-        final Boolean cached = myPrefixCache.get(index);
-        if (cached != null) {
-            return cached.booleanValue();
+        final int slot = getSlot(literal.getIndex());
+        final byte flags = myFlags[slot];
+        if ((flags & IS_PREFIX_KNOWN) != 0) {
+            return (flags & IS_PREFIX) != 0;
         }
 
         // Get the answer and cache the result
-        final boolean result = literal.matches(myChars, 0);
-        myPrefixCache.set(index, result);
+        final boolean result = literal.matches(myBytes, 0, mySize);
+        myFlags[slot] = (byte) (flags | IS_PREFIX_KNOWN | (result ? IS_PREFIX : 0));
         return result;
     }
 
@@ -69,137 +281,323 @@ class SearchableString {
     boolean endsWith(final Literal literal) {
 
         // Check whether the answer is already in the cache
-        final int index = literal.getIndex();
-        final Boolean cached = myPostfixCache.get(index);
-        if (cached != null) {
-            return cached.booleanValue();
+        final int slot = getSlot(literal.getIndex());
+        final byte flags = myFlags[slot];
+        if ((flags & IS_POSTFIX_KNOWN) != 0) {
+            return (flags & IS_POSTFIX) != 0;
         }
 
         // Get the answer and cache the result
-        final boolean result = literal.matches(myChars, myChars.length - literal.getLength());
-        myPostfixCache.set(index, result);
+        final boolean result = literal.matches(myBytes, mySize - literal.getLength(), mySize);
+        myFlags[slot] = (byte) (flags | IS_POSTFIX_KNOWN | (result ? IS_POSTFIX : 0));
         return result;
     }
 
     /**
      * Returns all indices where the literal argument can be found in this String. Results are cached for better
-     * performance.
+     * performance. This creates an array, {@link #indexOf(Literal, int)} should be used on hot paths.
      * @param literal The string that should be found
      * @return all indices where the literal argument can be found in this String.
      */
     int[] getIndices(final Literal literal) {
-
-        // Check whether the answer is already in the cache
-        final int index = literal.getIndex();
-        final int[] cached = myIndices[index];
-        if (cached != null) {
-            return cached;
+        final int slot = lookup(literal);
+        if (myArrays[slot] != null) {
+            return myArrays[slot];
         }
 
-        // Find all indices
-        final int[] values = findIndices(literal);
-        myIndices[index] = values;
+        final int offset = myOffsets[slot] + 1;
+        final int count = myPool[offset - 1];
+        final int[] values;
+        if (count == 0) {
+            values = EMPTY;
+        } else if (count == 1 && myPool[offset] < SINGLE_VALUES.length) {
+            values = SINGLE_VALUES[myPool[offset]];
+        } else {
+            values = Arrays.copyOfRange(myPool, offset, offset + count);
+        }
+        myArrays[slot] = values;
         return values;
     }
 
     /**
-     * Returns all indices where the literal argument can be found in this String.
+     * Returns the first index where the literal argument can be found in this String, at or after the specified index.
+     * Results are cached for better performance.
      * @param literal The string that should be found
-     * @return all indices where the literal argument can be found in this String.
+     * @param from The index to start from
+     * @return the first index at or after from, or -1 if there's no such index
      */
-    private int[] findIndices(final Literal literal) {
+    int indexOf(final Literal literal, final int from) {
+        final int slot = lookup(literal);
+        final int offset = myOffsets[slot] + 1;
+        final int end = offset + myPool[offset - 1];
+        for (int i = offset; i < end; i++) {
+            if (myPool[i] >= from) {
+                return myPool[i];
+            }
+        }
+        return -1;
+    }
 
-        int count = 0;
-        final char s = literal.getFirstChar();
-        for (int i = 0; i < myChars.length; i++) {
+    /**
+     * Indicates whether the literal argument can be found in this String. Results are cached for better performance.
+     * @param literal The string that should be found
+     * @return <code>true</code> if the literal occurs in this instance, <code>false</code> otherwise
+     */
+    boolean contains(final Literal literal) {
+        final int slot = lookup(literal);
+        return myPool[myOffsets[slot]] > 0;
+    }
+
+    // Makes sure the indices of the literal are in the pool, and returns the slot of the literal
+    private int lookup(final Literal literal) {
 
-            // Check the first char for better performance and check the complete string
-            if ((myChars[i] == s || s == '?') && literal.matches(myChars, i)) {
+        // Check whether the answer is already in the cache
+        final int index = literal.getIndex();
+        final int slot = find(index);
+        if (slot >= 0 && myOffsets[slot] != UNSEARCHED) {
+            return slot;
+        }
 
-                // This index matches
-                myBuffer[count] = i;
-                count++;
+        // Search all literals at once when more than a few literals are needed
+        if (myAutomaton != null && myAutomaton.contains(literal)) {
+            if (!myIsScanned && ++myNrOfLookups > LAZY_LOOKUPS) {
+                scan();
+            }
+            if (myIsScanned) {
+                // The single pass either found the literal or it isn't present
+                final int found = find(index);
+                return found >= 0 && myOffsets[found] != UNSEARCHED ? found : setOffset(index, 0);
             }
         }
 
-        // Check whether any match has been found
-        if (count == 0) {
-            return EMPTY;
+        // Find all indices
+        return findIndices(literal);
+    }
+
+    // Returns the slot of the literal with the specified index, or -1 if it hasn't been looked up
+    private int find(final int index) {
+        final int mask = myKeys.length - 1;
+        for (int slot = hash(index); myStamps[slot] == myEpoch; slot = slot + 1 & mask) {
+            if (myKeys[slot] == index) {
+                return slot;
+            }
         }
+        return -1;
+    }
 
-        // Use an existing array
-        if (count == 1 && myBuffer[0] < SINGLE_VALUES.length) {
-            final int index = myBuffer[0];
-            return SINGLE_VALUES[index];
+    private int hash(final int index) {
+        return index * 0x9E3779B9 >>> myShift;
+    }
+
+    // Returns the slot of the literal with the specified index, adding it if it hasn't been looked up
+    private int getSlot(final int index) {
+        final int slot = find(index);
+        return slot >= 0 ? slot : store(index, UNSEARCHED);
+    }
+
+    // Sets the offset of the indices of a literal, keeping its flags, and returns its slot
+    private int setOffset(final int index, final int offset) {
+        final int slot = find(index);
+        if (slot < 0) {
+            return store(index, offset);
         }
+        myOffsets[slot] = offset;
+        return slot;
+    }
 
-        // Copy the values
-        final int[] values = new int[count];
-        for (int i = 0; i < count; i++) {
-            values[i] = myBuffer[i];
+    // Stores the offset for a literal which hasn't been looked up yet, and returns its slot
+    private int store(final int index, final int offset) {
+        if (2 * (myNrOfEntries + 1) > myKeys.length) {
+            grow();
         }
-        return values;
+        myNrOfEntries++;
+        return put(index, offset, null, (byte) 0);
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public String toString() {
-        return new String(myChars);
+    private int put(final int index, final int offset, final int[] array, final byte flags) {
+        final int mask = myKeys.length - 1;
+        int slot = hash(index);
+        while (myStamps[slot] == myEpoch) {
+            slot = slot + 1 & mask;
+        }
+        myStamps[slot] = myEpoch;
+        myKeys[slot] = index;
+        myOffsets[slot] = offset;
+        myArrays[slot] = array;
+        myFlags[slot] = flags;
+        return slot;
     }
 
-    private static int[][] getSingleValues() {
-        final int[][] result = new int[1024][];
-        for (int i = 0; i < result.length; i++) {
-            result[i] = new int[]{i};
+    // Doubles the number of slots, keeping the entries of the current epoch
+    private void grow() {
+        final int[] stamps = myStamps;
+        final int[] keys = myKeys;
+        final int[] offsets = myOffsets;
+        final int[][] arrays = myArrays;
+        final byte[] flags = myFlags;
+
+        final int capacity = 2 * keys.length;
+        myStamps = new int[capacity];
+        myKeys = new int[capacity];
+        myOffsets = new int[capacity];
+        myArrays = new int[capacity][];
+        myFlags = new byte[capacity];
+        myShift--;
+        for (int i = 0; i < keys.length; i++) {
+            if (stamps[i] == myEpoch) {
+                put(keys[i], offsets[i], arrays[i], flags[i]);
+            }
         }
-        return result;
     }
 
-    /** Compact cache for boolean values. */
-    static class Cache {
+    private void addToPool(final int value) {
+        if (myPoolSize == myPool.length) {
+            myPool = copyOf(myPool, 2 * myPoolSize);
+        }
+        myPool[myPoolSize++] = value;
+    }
 
-        // The boolean values
-        private final BitSet myValues = new BitSet();
+    /**
+     * Finds all literals of the automaton in a single pass and caches the indices for all of them.
+     */
+    private void scan() {
+        myIsScanned = true;
+        myNrOfMatches = 0;
+        myAutomaton.scan(myBytes, mySize, myMatchConsumer);
+
+        // Group the matches by literal, indices remain ordered
+        sort(myMatches, 0, myNrOfMatches);
+        if (myFoundLiterals.length < myNrOfMatches) {
+            myFoundLiterals = new int[Math.max(myNrOfMatches, 2 * myFoundLiterals.length)];
+        }
+        int i = 0;
+        while (i < myNrOfMatches) {
+            final int literal = (int) (myMatches[i] >>> 32);
+            final int slot = find(literal);
+            final boolean isKnown = slot >= 0 && myOffsets[slot] != UNSEARCHED;
+            final int offset = myPoolSize;
+            if (!isKnown) {
+                addToPool(0);
+            }
+            while (i < myNrOfMatches && (int) (myMatches[i] >>> 32) == literal) {
+                if (!isKnown) {
+                    addToPool((int) myMatches[i]);
+                }
+                i++;
+            }
+            if (!isKnown) {
+                myPool[offset] = myPoolSize - offset - 1;
+                setOffset(literal, offset);
+            }
+            myFoundLiterals[myNrOfFoundLiterals++] = literal;
+        }
+    }
 
-        // Indicates whether a value has been stored for an index
-        private final BitSet myIsKnown = new BitSet();
+    /**
+     * Returns the number of literals that occur in this instance, as far as they are known to the automaton of the
+     * domain. All other literals should be searched for individually.
+     * @return the number of literals found, 0 if the domain isn't compiled
+     */
+    int getNrOfFoundLiterals() {
+        if (myAutomaton != null && !myIsScanned) {
+            scan();
+        }
+        return myNrOfFoundLiterals;
+    }
 
-        /**
-         * Gets the cached value for the specified index.
-         * @param index The index of the requested value
-         * @return The cached boolean value, or <code>null</code> if no value is present in the cache.
-         */
-        Boolean get(final int index) {
+    /**
+     * Returns a literal that occurs in this instance, ordered by index.
+     * @param i The position among the found literals, less than {@link #getNrOfFoundLiterals()}
+     * @return the index of the literal
+     */
+    int getFoundLiteral(final int i) {
+        return myFoundLiterals[i];
+    }
 
-            // Check whether a true value has been set
-            if (myValues.get(index)) {
-                return Boolean.TRUE;
-            }
+    private void addMatch(final int literalIndex, final int start) {
+        if (myNrOfMatches == myMatches.length) {
+            myMatches = copyOf(myMatches, myNrOfMatches * 2);
+        }
+        myMatches[myNrOfMatches++] = (long) literalIndex << 32 | start;
+    }
 
-            // Check whether any value has been stored
-            if (myIsKnown.get(index)) {
-                return Boolean.FALSE;
+    /**
+     * Finds all indices where the literal argument can be found in this String, and stores them in the pool.
+     * @param literal The string that should be found
+     * @return the slot of the literal
+     */
+    private int findIndices(final Literal literal) {
+
+        // Candidate positions are the occurrences of the longest part without question marks, which the automaton may
+        // already have found. Looking it up may add to the pool, so the indices of this literal are added afterwards.
+        final int anchor = literal.getAnchor();
+        final Literal anchorLiteral = myAutomaton == null ? null : myAutomaton.getAnchor(literal);
+        final int anchorSlot = anchorLiteral == null ? -1 : lookup(anchorLiteral);
+
+        final int offset = myPoolSize;
+        addToPool(0);
+        final int last = mySize - literal.getLength();
+        if (anchorSlot >= 0) {
+            final int from = myOffsets[anchorSlot] + 1;
+            final int to = from + myPool[from - 1];
+            for (int i = from; i < to; i++) {
+                addIfMatches(literal, myPool[i] - anchor, last);
+            }
+        } else if (literal.getAnchorLength() == 0) {
+            // Only question marks, which match at every position
+            for (int i = 0; i <= last; i++) {
+                addToPool(i);
+            }
+        } else {
+            for (int i = indexOfAnchor(literal, anchor, last + anchor); i >= 0;
+                    i = indexOfAnchor(literal, i + 1, last + anchor)) {
+                addIfMatches(literal, i - anchor, last);
             }
+        }
+        myPool[offset] = myPoolSize - offset - 1;
+        return setOffset(literal.getIndex(), offset);
+    }
 
-            // No value found
-            return null;
+    // Adds the position to the pool if the complete literal starts at it
+    private void addIfMatches(final Literal literal, final int position, final int last) {
+        if (position >= 0 && position <= last && literal.matches(myBytes, position, mySize)) {
+            addToPool(position);
         }
+    }
 
-        /**
-         * Set the value in the cache.
-         * @param index The index for the stored value
-         * @param flag The actual value
-         */
-        void set(final int index, final boolean flag) {
+    // Returns the first position from the start up to the limit where the longest part without question marks occurs
+    private int indexOfAnchor(final Literal literal, final int start, final int limit) {
+        final int anchor = literal.getAnchor();
+        final int length = literal.getAnchorLength();
+        final byte first = literal.byteAt(anchor);
+        for (int i = start; i <= limit; i++) {
+            if (myBytes[i] == first) {
+                int j = 1;
+                while (j < length && myBytes[i + j] == literal.byteAt(anchor + j)) {
+                    j++;
+                }
+                if (j == length) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
 
-            // Store the value
-            myValues.set(index, flag);
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return new String(myBytes, 0, mySize, ISO_8859_1);
+    }
 
-            // Store the fact the value has been stored
-            myIsKnown.set(index, true);
+    private static int[][] getSingleValues() {
+        final int[][] result = new int[1024][];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = new int[]{i};
         }
+        return result;
     }
 }
 
@@ -208,13 +606,24 @@ class SearchableString {
  */
 class Literal {
 
-    // The actual string data
+    // Characters beyond Latin-1 are represented by the substitute character, on both sides of a comparison. Comparing
+    // the bytes may therefore match different characters, so rules with the substitute are checked by their characters.
+    static final char SUBSTITUTE = '\u001A';
+
+    // The actual string data, and a byte per character for comparisons
     private final String myString;
-    private final char[] myCharacters;
+    private final byte[] myBytes;
 
     // The unique index for this instance
     private final int myIndex;
 
+    // Whether a byte is the substitute character, so it may represent another character
+    private final boolean myHasSubstitute;
+
+    // The start and length of the longest part without question marks, which is used for finding candidate positions
+    private final int myAnchor;
+    private final int myAnchorLength;
+
     /**
      * Creates a new instance with the specified non-empty value.
      * @param value The String value
@@ -222,8 +631,106 @@ class Literal {
      */
     Literal(final String value, final int index) {
         myString = value;
-        myCharacters = value.toCharArray();
+        myBytes = toBytes(value);
         myIndex = index;
+
+        boolean hasSubstitute = false;
+        for (final byte b : myBytes) {
+            hasSubstitute |= b == SUBSTITUTE;
+        }
+        myHasSubstitute = hasSubstitute;
+
+        int anchor = 0;
+        int anchorLength = 0;
+        int start = 0;
+        for (int i = 0; i <= myBytes.length; i++) {
+            if (i == myBytes.length || myBytes[i] == '?') {
+                if (i - start > anchorLength) {
+                    anchor = start;
+                    anchorLength = i - start;
+                }
+                start = i + 1;
+            }
+        }
+        myAnchor = anchor;
+        myAnchorLength = anchorLength;
+    }
+
+    /**
+     * Returns the byte representing a character. Browscap patterns and useragents are nearly always ASCII, so a byte
+     * per character is sufficient. Characters beyond Latin-1 compare equal to each other, which is resolved by checking
+     * the characters of the rules with them, see {@link #hasSubstitute()}.
+     * @param c The character
+     * @return the Latin-1 value of the character, or the substitute character
+     */
+    static byte toByte(final char c) {
+        return (byte) (c < 256 ? c : SUBSTITUTE);
+    }
+
+    /**
+     * Returns a signature of the bigrams of the specified characters, with a single bit per bigram. If a value contains
+     * another value, its signature contains all bits of the signature of the other value. Bigrams with a question mark
+     * are ignored, as the question mark may represent any character.
+     * @param bytes The bytes of the characters
+     * @param from The index of the first character
+     * @param to The index after the last character
+     * @return the signature
+     */
+    static long getSignature(final byte[] bytes, final int from, final int to) {
+        long result = 0;
+        for (int i = from + 1; i < to; i++) {
+            if (bytes[i - 1] != '?' && bytes[i] != '?') {
+                result |= 1L << ((bytes[i - 1] << 8 ^ bytes[i]) * 0x9E3779B9 >>> 26);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the signature of the bigrams of this instance, see {@link #getSignature(byte[], int, int)}.
+     * @return the signature
+     */
+    long getSignature() {
+        return getSignature(myBytes, 0, myBytes.length);
+    }
+
+    /**
+     * Returns the bytes representing the characters of a string.
+     * @param value The string
+     * @return a byte per character
+     */
+    static byte[] toBytes(final String value) {
+        final byte[] result = new byte[value.length()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = toByte(value.charAt(i));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the string as represented by its bytes, with characters beyond Latin-1 replaced.
+     * @param value The string
+     * @return the represented string
+     */
+    static String fold(final String value) {
+        final char[] chars = value.toCharArray();
+        boolean isFolded = false;
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 256) {
+                chars[i] = SUBSTITUTE;
+                isFolded = true;
+            }
+        }
+        return isFolded ? new String(chars) : value;
+    }
+
+    /**
+     * Indicates whether this instance contains the substitute character, either for a character beyond Latin-1 or as
+     * itself. Matching its bytes is then necessary for matching its characters, but not sufficient.
+     * @return <code>true</code> if a byte is the substitute character, <code>false</code> otherwise
+     */
+    boolean hasSubstitute() {
+        return myHasSubstitute;
     }
 
     /**
@@ -231,7 +738,7 @@ class Literal {
      * @return the first character
      */
     char getFirstChar() {
-        return myCharacters[0];
+        return (char) (myBytes[0] & 0xFF);
     }
 
     /**
@@ -239,25 +746,61 @@ class Literal {
      * @return The size of this instance
      */
     int getLength() {
-        return myCharacters.length;
+        return myBytes.length;
+    }
+
+    /**
+     * Returns the byte representing the character at the specified index.
+     * @param index The index of the character
+     * @return the byte
+     */
+    byte byteAt(final int index) {
+        return myBytes[index];
+    }
+
+    /**
+     * Returns the start of the longest part without question marks.
+     * @return the index of the first character of the part
+     */
+    int getAnchor() {
+        return myAnchor;
+    }
+
+    /**
+     * Returns the length of the longest part without question marks.
+     * @return the length, 0 if this instance only consists of question marks
+     */
+    int getAnchorLength() {
+        return myAnchorLength;
+    }
+
+    /**
+     * Checks whether the value represents a complete substring from the from index.
+     * @param from The start index of the potential substring
+     * @return <code>true</code> If the arguments represent a valid substring, <code>false</code> otherwise.
+     */
+    boolean matches(final byte[] value, final int from) {
+        return matches(value, from, value.length);
     }
 
     /**
      * Checks whether the value represents a complete substring from the from index.
+     * @param value The bytes of the characters to search in
      * @param from The start index of the potential substring
+     * @param size The number of characters of the value to use
      * @return <code>true</code> If the arguments represent a valid substring, <code>false</code> otherwise.
      */
-    boolean matches(final char[] value, final int from) {
+    boolean matches(final byte[] value, final int from, final int size) {
         // Check the bounds
-        final int len = myCharacters.length;
-        if (len + from > value.length || from < 0) {
+        final int len = myBytes.length;
+        if (len + from > size || from < 0) {
             return false;
         }
 
         // Bounds are ok, check all characters.
         // Allow question marks to match any character
         for (int i = 0; i < len; i++) {
-            if (myCharacters[i] != value[i + from] && myCharacters[i] != '?') {
+            if (myBytes[i] != value[i + from] && myBytes[i] != '?') {
                 return false;
             }
         }
@@ -274,26 +817,39 @@ class Literal {
         return myIndex;
     }
 
-    private static boolean contains(final char[] characters, final char value) {
-        for (int i = 0; i < characters.length; i++) {
-            if (characters[i] == value) {
-                return true;
-            }
-        }
-        return false;
+    /**
+     * Tests whether any string matching this instance contains a string matching the value.
+     * @param value The string that should be contained
+     * @return <code>true</code> if the value is required, <code>false</code> otherwise
+     */
+    boolean requires(final String value) {
+        return requires(myString, value);
     }
 
-    boolean requires(final String value) {
-        final int len = value.length();
-        if (len == 1) {
-            return contains(myCharacters, value.charAt(0));
+    /**
+     * Tests whether any string matching the literal contains a string matching the value. A question mark in the
+     * value matches any character, while a question mark in the literal only matches a question mark in the value.
+     * @param literal The literal
+     * @param value The string that should be contained
+     * @return <code>true</code> if the value is required, <code>false</code> otherwise
+     */
+    static boolean requires(final String literal, final String value) {
+        if (value.indexOf('?') < 0) {
+            return literal.contains(value);
         }
 
-        if (len > myCharacters.length) {
-            return false;
+        final int len = value.length();
+        final int last = literal.length() - len;
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+            while (j < len && (value.charAt(j) == '?' || value.charAt(j) == literal.charAt(i + j))) {
+                j++;
+            }
+            if (j == len) {
+                return true;
+            }
         }
-
-        return myString.contains(value);
+        return false;
     }
 
     /**
@@ -310,13 +866,44 @@ class LiteralDomain {
     // Keep track of the total number of instances
     private final AtomicInteger myNrOfInstances = new AtomicInteger();
 
-    Literal createLiteral(final String contents) {
-        return new Literal(contents, myNrOfInstances.getAndAdd(1));
+    // All instances, the index of a literal is its position in this list
+    private final List<Literal> myLiterals = new ArrayList<>();
+
+    // The automaton for all literals, if compiled
+    private volatile LiteralAutomaton myAutomaton;
+
+    synchronized Literal createLiteral(final String contents) {
+        final Literal literal = new Literal(contents, myNrOfInstances.get());
+        myLiterals.add(literal);
+        myNrOfInstances.incrementAndGet();
+        return literal;
+    }
+
+    /**
+     * Compiles all literals created so far into an automaton, so searchable strings can find all of them in a single
+     * pass. Literals created afterwards are still searched for individually.
+     */
+    synchronized void compile() {
+        myAutomaton = new LiteralAutomaton(myLiterals);
+    }
+
+    /**
+     * Returns the automaton of the literals compiled so far.
+     * @return the automaton, or <code>null</code> if the domain hasn't been compiled yet
+     */
+    LiteralAutomaton getAutomaton() {
+        return myAutomaton;
     }
 
     SearchableString getSearchableString(final String contents) {
-        final int maxIndex = myNrOfInstances.get() + 1;
+        return new SearchableString(contents, myAutomaton);
+    }
 
-        return new SearchableString(contents, maxIndex);
+    /**
+     * Creates an empty searchable string, which should be reset to a value before use.
+     * @return the searchable string
+     */
+    SearchableString createSearchableString() {
+        return getSearchableString("");
     }
 }
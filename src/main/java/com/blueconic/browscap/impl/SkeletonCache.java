@@ -0,0 +1,127 @@
+package com.blueconic.browscap.impl;
+
+import static java.util.Arrays.copyOf;
+
+/**
+ * Cache of the rules which matched useragents, keyed by the skeleton of the useragent: the useragent with each run of
+ * digits replaced by a single zero. Useragents differing only in their version or build numbers share an entry, but may
+ * still match different rules, so an entry is only a hint which the parser verifies. As a hint is never trusted,
+ * entries are replaced without synchronization and a slot simply holds the most recent skeleton mapped to it.
+ * <p>
+ * The skeleton of a useragent is hashed and compared straight from its bytes, so looking up a useragent doesn't
+ * allocate. Only remembering another rule creates an entry.
+ */
+class SkeletonCache {
+
+    // The marker of a run of digits, which can't be confused with a digit of the useragent as a run is never split
+    static final byte DIGITS = '0';
+
+    private final Entry[] myEntries;
+
+    /**
+     * Creates an empty cache.
+     * @param size The number of entries, rounded up to a power of 2
+     */
+    SkeletonCache(final int size) {
+        myEntries = new Entry[Integer.highestOneBit(Math.max(1, size) * 2 - 1)];
+    }
+
+    /**
+     * Returns the hash of the skeleton of a useragent.
+     * @param value The useragent
+     * @return the hash of the useragent with the digit runs masked
+     */
+    static int getHash(final SearchableString value) {
+        int hash = 0;
+        final int size = value.getSize();
+        for (int i = 0; i < size; i++) {
+            if (isSkeleton(value, i)) {
+                hash = 31 * hash + getSkeletonByte(value, i);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the skeleton of a useragent.
+     * @param value The useragent
+     * @return the useragent with the digit runs masked, a byte per character
+     */
+    static byte[] getSkeleton(final SearchableString value) {
+        final int size = value.getSize();
+        final byte[] result = new byte[size];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            if (isSkeleton(value, i)) {
+                result[length++] = getSkeletonByte(value, i);
+            }
+        }
+        return copyOf(result, length);
+    }
+
+    /**
+     * Returns the rule which matched the last useragent with the same skeleton.
+     * @param value The useragent
+     * @param hash The hash of its skeleton, see {@link #getHash(SearchableString)}
+     * @return the index of the rule, or -1 if there's no such rule
+     */
+    int get(final SearchableString value, final int hash) {
+        final Entry entry = myEntries[getSlot(hash)];
+        return entry != null && entry.myHash == hash && isSkeletonOf(entry.mySkeleton, value) ? entry.myRule : -1;
+    }
+
+    /**
+     * Remembers the rule which matched a useragent.
+     * @param value The useragent
+     * @param hash The hash of its skeleton, see {@link #getHash(SearchableString)}
+     * @param rule The index of the rule
+     */
+    void put(final SearchableString value, final int hash, final int rule) {
+        myEntries[getSlot(hash)] = new Entry(getSkeleton(value), hash, rule);
+    }
+
+    private int getSlot(final int hash) {
+        return (hash ^ hash >>> 16) & myEntries.length - 1;
+    }
+
+    // Compares a skeleton with the one of the useragent, without creating the latter
+    private static boolean isSkeletonOf(final byte[] skeleton, final SearchableString value) {
+        final int size = value.getSize();
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            if (isSkeleton(value, i)) {
+                if (length == skeleton.length || skeleton[length++] != getSkeletonByte(value, i)) {
+                    return false;
+                }
+            }
+        }
+        return length == skeleton.length;
+    }
+
+    // Whether the character is in the skeleton, which only keeps the first digit of a run
+    private static boolean isSkeleton(final SearchableString value, final int index) {
+        return !isDigit(value.charAt(index)) || index == 0 || !isDigit(value.charAt(index - 1));
+    }
+
+    private static byte getSkeletonByte(final SearchableString value, final int index) {
+        final char c = value.charAt(index);
+        return isDigit(c) ? DIGITS : (byte) c;
+    }
+
+    private static boolean isDigit(final char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    // Immutable, so an entry is never observed partially written
+    private static final class Entry {
+        private final byte[] mySkeleton;
+        private final int myHash;
+        private final int myRule;
+
+        Entry(final byte[] skeleton, final int hash, final int rule) {
+            mySkeleton = skeleton;
+            myHash = hash;
+            myRule = rule;
+        }
+    }
+}
@@ -1,27 +1,41 @@
 package com.blueconic.browscap.impl;
 
 import static com.blueconic.browscap.Capabilities.UNKNOWN_BROWSCAP_VALUE;
+import static com.blueconic.browscap.impl.UserAgentParserImpl.getOrderedRules;
 import static java.util.Collections.singleton;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
 import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import com.univocity.parsers.common.record.Record;
 import com.univocity.parsers.csv.CsvParser;
 import com.univocity.parsers.csv.CsvParserSettings;
 
 import com.blueconic.browscap.BrowsCapField;
 import com.blueconic.browscap.Capabilities;
 import com.blueconic.browscap.ParseException;
+import com.blueconic.browscap.ParserOptions;
 import com.blueconic.browscap.UserAgentParser;
 
 /**
@@ -29,12 +43,19 @@ import com.blueconic.browscap.UserAgentParser;
  */
 public class UserAgentFileParser {
 
+    // The number of characters of the CSV file parsed by a thread at a time
+    private static final int BATCH_SIZE = 1 << 20;
+
+    // The rows of rules have a value in this column, the rows with the version of the file don't
+    private static final int LAST_RULE_COLUMN = 47;
+
     // Mapping substrings to unique literal for caching of lookups
     private final Map<String, Literal> myUniqueLiterals = new HashMap<>();
 
-    private final Map<Capabilities, Capabilities> myCache = new HashMap<>();
+    // Concurrent, as the rows of the CSV file may be parsed by multiple threads
+    private final Map<Capabilities, Capabilities> myCache = new ConcurrentHashMap<>();
 
-    private final Map<String, String> myStrings = new HashMap<>();
+    private final Map<String, String> myStrings = new ConcurrentHashMap<>();
 
     private final Mapper myMapper;
 
@@ -57,23 +78,194 @@ public class UserAgentFileParser {
      */
     public static UserAgentParser parse(final Reader input, final Collection<BrowsCapField> fields)
             throws IOException, ParseException {
-        return new UserAgentFileParser(fields).parse(input);
+        return parse(input, fields, new ParserOptions());
+    }
+
+    /**
+     * Parses a csv stream of rules.
+     * @param input The input stream
+     * @param fields The fields that should be stored during parsing
+     * @param options The options for building the parser
+     * @return a UserAgentParser based on the read rules
+     * @throws IOException If reading the stream failed.
+     * @throws ParseException
+     */
+    public static UserAgentParser parse(final Reader input, final Collection<BrowsCapField> fields,
+            final ParserOptions options) throws IOException, ParseException {
+        return new UserAgentFileParser(fields).parse(input, options);
     }
 
-    private UserAgentParser parse(final Reader input) throws ParseException {
+    /**
+     * Parses a csv stream of rules, and writes the snapshot of the resulting parser. Loading a parser from the
+     * snapshot skips parsing the rules and selecting the filters.
+     * @param input The input stream
+     * @param fields The fields that should be stored in the snapshot
+     * @param options The options for building the parser, of which the number of filters is stored
+     * @param output The output for the snapshot, which isn't closed
+     * @throws IOException If reading the stream or writing the snapshot failed.
+     * @throws ParseException
+     */
+    public static void writeSnapshot(final Reader input, final Collection<BrowsCapField> fields,
+            final ParserOptions options, final OutputStream output) throws IOException, ParseException {
+        final UserAgentFileParser fileParser = new UserAgentFileParser(fields);
+        final Rule[] orderedRules = getOrderedRules(fileParser.parseRules(input, options.getNrOfLoadThreads()));
+
+        // The snapshot contains the filters, also if the index is used when writing it
+        final ParserOptions filterOptions = new ParserOptions().setNrOfFilters(options.getNrOfFilters());
+        final UserAgentParserImpl parser = new UserAgentParserImpl(orderedRules, fileParser.myDomain,
+                fileParser.getDefaultCapabilities(), filterOptions, null, null);
+        ParserSnapshot.write(output, EnumSet.copyOf(fileParser.myFields), orderedRules, parser.getFilters(),
+                options.getNrOfFilters());
+    }
+
+    /**
+     * Reads a snapshot from a stream into memory, e.g. to decompress it. The buffer has the size stored in the header of
+     * the snapshot, so it's allocated once.
+     * @param input The input stream, which isn't closed
+     * @return the snapshot, which is validated when it's parsed
+     * @throws IOException If reading the stream failed
+     * @throws ParseException If the stream doesn't contain a snapshot
+     */
+    public static ByteBuffer readSnapshot(final InputStream input) throws IOException, ParseException {
+        return ParserSnapshot.read(input);
+    }
+
+    /**
+     * Creates a parser from a snapshot, as written by
+     * {@link #writeSnapshot(Reader, Collection, ParserOptions, OutputStream)}.
+     * @param snapshot The snapshot, e.g. a mapped file
+     * @param fields The fields that should be loaded, which should be stored in the snapshot
+     * @param options The options for building the parser
+     * @return a UserAgentParser based on the snapshot
+     * @throws ParseException If the snapshot is invalid or doesn't contain all fields
+     */
+    public static UserAgentParser parseSnapshot(final ByteBuffer snapshot, final Collection<BrowsCapField> fields,
+            final ParserOptions options) throws ParseException {
+        final UserAgentParser result = parseSnapshotIfContains(snapshot, fields, options);
+        if (result == null) {
+            throw new ParseException("The snapshot doesn't contain the values of all fields " + fields);
+        }
+        return result;
+    }
+
+    /**
+     * Creates a parser from a snapshot if it contains the values of all fields, which is checked while reading it.
+     * @param snapshot The snapshot, e.g. a mapped file
+     * @param fields The fields that should be loaded
+     * @param options The options for building the parser
+     * @return a UserAgentParser based on the snapshot, or <code>null</code> if the snapshot doesn't contain all fields
+     * @throws ParseException If the snapshot is invalid
+     */
+    public static UserAgentParser parseSnapshotIfContains(final ByteBuffer snapshot,
+            final Collection<BrowsCapField> fields, final ParserOptions options) throws ParseException {
+        return ParserSnapshot.read(snapshot, new UserAgentFileParser(fields), fields, options);
+    }
+
+    /**
+     * Returns the fields which can be loaded from a snapshot.
+     * @param snapshot The snapshot, e.g. a mapped file
+     * @return the fields stored in the snapshot
+     * @throws ParseException If the snapshot is invalid
+     */
+    public static Set<BrowsCapField> getSnapshotFields(final ByteBuffer snapshot) throws ParseException {
+        return ParserSnapshot.getFields(snapshot);
+    }
+
+    private UserAgentParser parse(final Reader input, final ParserOptions options)
+            throws IOException, ParseException {
+        final Rule[] rules = parseRules(input, options.getNrOfLoadThreads());
+        return new UserAgentParserImpl(rules, myDomain, getDefaultCapabilities(), options);
+    }
+
+    Rule[] parseRules(final Reader input, final int nrOfThreads) throws IOException, ParseException {
         final List<Rule> rules = new ArrayList<>();
+        if (nrOfThreads <= 1) {
+            parseRows(input, row -> rules.add(getRule(row)));
+            return rules.toArray(new Rule[0]);
+        }
 
-        final CsvParserSettings settings = new CsvParserSettings();
-        final CsvParser csvParser = new CsvParser(settings);
+        // The rows are parsed in batches by the workers, but the rules are created in order of the file by this
+        // thread, so the literals get the same indices as when parsing sequentially
+        final ExecutorService executor = Executors.newFixedThreadPool(nrOfThreads);
+        try {
+            final Deque<Future<List<Row>>> batches = new ArrayDeque<>();
+            final CsvBatchReader reader = new CsvBatchReader(input, BATCH_SIZE);
+            String batch;
+            while ((batch = reader.next()) != null) {
+                final Reader batchReader = new StringReader(batch);
+                batches.add(executor.submit(() -> {
+                    final List<Row> rows = new ArrayList<>();
+                    parseRows(batchReader, rows::add);
+                    return rows;
+                }));
+
+                // Limit the number of batches in memory
+                if (batches.size() > 2 * nrOfThreads) {
+                    addRules(batches.remove(), rules);
+                }
+            }
+            while (!batches.isEmpty()) {
+                addRules(batches.remove(), rules);
+            }
+            return rules.toArray(new Rule[0]);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void addRules(final Future<List<Row>> batch, final List<Rule> rules) throws ParseException {
+        final List<Row> rows;
+        try {
+            rows = batch.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ParseException("Interrupted while parsing the rules");
+        } catch (final ExecutionException e) {
+            // Throw the exception of the worker as if the batch was parsed by this thread
+            if (e.getCause() instanceof ParseException) {
+                throw (ParseException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        for (final Row row : rows) {
+            rules.add(getRule(row));
+        }
+    }
+
+    // Parses the rows of the CSV file, without creating the literals
+    private void parseRows(final Reader input, final RowHandler handler) throws ParseException {
+        final CsvParser csvParser = new CsvParser(getCsvSettings());
         csvParser.beginParsing(input);
-        Record record;
-        while ((record = csvParser.parseNextRecord()) != null) {
-            final Rule rule = getRule(record);
-            if (rule != null) {
-                rules.add(rule);
+        String[] values;
+        while ((values = csvParser.parseNext()) != null) {
+            final Row row = getRow(values);
+            if (row != null) {
+                handler.handle(row);
             }
         }
-        return new UserAgentParserImpl(rules.toArray(new Rule[0]), myDomain, getDefaultCapabilities());
+    }
+
+    // Only the columns of the pattern and the fields are parsed into values
+    private CsvParserSettings getCsvSettings() {
+        final Set<Integer> columns = new TreeSet<>();
+        columns.add(0);
+        columns.add(LAST_RULE_COLUMN);
+        for (final BrowsCapField field : myFields) {
+            columns.add(field.getIndex());
+        }
+
+        final CsvParserSettings settings = new CsvParserSettings();
+        settings.selectIndexes(columns.toArray(new Integer[0]));
+
+        // Keep the selected values at the index of their column, the other values are null
+        settings.setColumnReorderingEnabled(false);
+
+        // Missing columns are padded with null, so the empty values are parsed as empty strings to tell them apart
+        settings.setNullValue("");
+        settings.setEmptyValue("");
+        return settings;
     }
 
     Capabilities getDefaultCapabilities() {
@@ -84,27 +276,28 @@ public class UserAgentFileParser {
         return getCapabilities(result);
     }
 
-    private Rule getRule(final Record record) throws ParseException {
-        if (record.getValues().length <= 47) {
+    private Row getRow(final String[] values) throws ParseException {
+        if (values.length <= LAST_RULE_COLUMN || values[LAST_RULE_COLUMN] == null) {
             return null;
         }
 
         // Normalize: lowercase and remove duplicate wildcards
-        final String pattern = normalizePattern(record.getString(0));
-        try {
-            final Map<BrowsCapField, String> values = getBrowsCapFields(record);
-            final Capabilities capabilities = getCapabilities(values);
-            final Rule rule = createRule(pattern, capabilities);
+        final String pattern = normalizePattern(values[0]);
+        final List<String> parts = getParts(pattern);
+        if (parts.isEmpty()) {
+            throw new ParseException("Unable to parse " + pattern);
+        }
+        return new Row(pattern, parts, getCapabilities(getBrowsCapFields(values)));
+    }
 
-            // Check reconstructing the pattern
-            if (!pattern.equals(rule.getPattern())) {
-                throw new ParseException("Unable to parse " + pattern);
-            }
-            return rule;
+    private Rule getRule(final Row row) throws ParseException {
+        final Rule rule = createRule(row);
 
-        } catch (final IllegalStateException e) {
-            throw new ParseException("Unable to parse " + pattern);
+        // Check reconstructing the pattern
+        if (!row.myPattern.equals(Rule.getPattern(rule.getPrefix(), rule.getSuffixes(), rule.getPostfix()))) {
+            throw new ParseException("Unable to parse " + row.myPattern);
         }
+        return rule;
     }
 
     private static String normalizePattern(final String pattern) {
@@ -116,10 +309,10 @@ public class UserAgentFileParser {
         return lowerCase;
     }
 
-    private Map<BrowsCapField, String> getBrowsCapFields(final Record record) {
+    private Map<BrowsCapField, String> getBrowsCapFields(final String[] record) {
         final Map<BrowsCapField, String> values = new EnumMap<>(BrowsCapField.class);
         for (final BrowsCapField field : myFields) {
-            values.put(field, getValue(record.getString(field.getIndex())));
+            values.put(field, getValue(record[field.getIndex()]));
         }
         return values;
     }
@@ -134,24 +327,15 @@ public class UserAgentFileParser {
             return UNKNOWN_BROWSCAP_VALUE;
         }
 
-        final String cached = myStrings.get(trimmed);
-        if (cached != null) {
-            return cached;
-        }
-        myStrings.put(trimmed, trimmed);
-        return trimmed;
+        final String cached = myStrings.putIfAbsent(trimmed, trimmed);
+        return cached == null ? trimmed : cached;
     }
 
     Capabilities getCapabilities(final Map<BrowsCapField, String> values) {
 
         final CapabilitiesImpl result = new CapabilitiesImpl(myMapper.getValues(values), myMapper);
-        final Capabilities fromCache = myCache.get(result);
-        if (fromCache != null) {
-            return fromCache;
-        }
-
-        myCache.put(result, result);
-        return result;
+        final Capabilities fromCache = myCache.putIfAbsent(result, result);
+        return fromCache == null ? result : fromCache;
     }
 
     Literal getLiteral(final String value) {
@@ -168,36 +352,25 @@ public class UserAgentFileParser {
         if (parts.isEmpty()) {
             throw new IllegalStateException();
         }
+        return createRule(new Row(pattern, parts, capabilities));
+    }
 
-        final String first = parts.get(0);
-        if (parts.size() == 1) {
-            if ("*".equals(first)) {
-                return getWildCardRule();
-            }
-            return new Rule(getLiteral(first), null, null, pattern, capabilities);
-        }
-
-        final LinkedList<String> suffixes = new LinkedList<>(parts);
-
-        Literal prefix = null;
-        if (!"*".equals(first)) {
-            prefix = getLiteral(first);
-            suffixes.remove(0);
+    private Rule createRule(final Row row) {
+        if (row.myIsWildCard) {
+            return getWildCardRule();
         }
 
-        final String last = parts.get(parts.size() - 1);
-        Literal postfix = null;
-        if (!"*".equals(last)) {
-            postfix = getLiteral(last);
-            suffixes.removeLast();
-        }
-        suffixes.removeAll(singleton("*"));
-        final Literal[] suffixArray = new Literal[suffixes.size()];
-        for (int i = 0; i < suffixArray.length; i++) {
-            suffixArray[i] = getLiteral(suffixes.get(i));
+        // The prefix and postfix are created before the suffixes
+        final Literal prefix = row.myPrefix == null ? null : getLiteral(row.myPrefix);
+        final Literal postfix = row.myPostfix == null ? null : getLiteral(row.myPostfix);
+        Literal[] suffixes = null;
+        if (row.mySuffixes != null) {
+            suffixes = new Literal[row.mySuffixes.length];
+            for (int i = 0; i < suffixes.length; i++) {
+                suffixes[i] = getLiteral(row.mySuffixes[i]);
+            }
         }
-
-        return new Rule(prefix, suffixArray, postfix, pattern, capabilities);
+        return new Rule(prefix, suffixes, postfix, row.myPattern, row.myCapabilities);
     }
 
     private Rule getWildCardRule() {
@@ -236,4 +409,42 @@ public class UserAgentFileParser {
 
         return parts;
     }
+
+    // Handles the rows of the CSV file
+    private interface RowHandler {
+        void handle(Row row) throws ParseException;
+    }
+
+    // A row of the CSV file, with the parts of its pattern from which the literals of the rule are created
+    private static final class Row {
+        private final String myPattern;
+        private final boolean myIsWildCard;
+        private final String myPrefix;
+        private final String[] mySuffixes;
+        private final String myPostfix;
+        private final Capabilities myCapabilities;
+
+        Row(final String pattern, final List<String> parts, final Capabilities capabilities) {
+            myPattern = pattern;
+            myCapabilities = capabilities;
+
+            final String first = parts.get(0);
+            if (parts.size() == 1) {
+                myIsWildCard = "*".equals(first);
+                myPrefix = myIsWildCard ? null : first;
+                mySuffixes = null;
+                myPostfix = null;
+                return;
+            }
+
+            final LinkedList<String> suffixes = new LinkedList<>(parts);
+            myIsWildCard = false;
+            myPrefix = "*".equals(first) ? null : suffixes.removeFirst();
+
+            final String last = parts.get(parts.size() - 1);
+            myPostfix = "*".equals(last) ? null : suffixes.removeLast();
+            suffixes.removeAll(singleton("*"));
+            mySuffixes = suffixes.toArray(new String[0]);
+        }
+    }
 }
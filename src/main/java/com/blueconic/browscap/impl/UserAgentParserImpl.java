@@ -1,19 +1,26 @@
 package com.blueconic.browscap.impl;
 
-import static java.util.Arrays.parallelSort;
+import static com.blueconic.browscap.impl.RuleBitmap.BLOCK_BITS;
+import static com.blueconic.browscap.impl.RuleBitmap.BLOCK_SIZE;
+import static com.blueconic.browscap.impl.RuleBitmap.BLOCK_WORDS;
+import static java.util.Arrays.fill;
 import static java.util.Arrays.sort;
-import static java.util.stream.Collectors.toList;
+import static java.util.Objects.requireNonNull;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
-import java.util.stream.Stream;
 
 import com.blueconic.browscap.Capabilities;
+import com.blueconic.browscap.ParserOptions;
+import com.blueconic.browscap.ParserOptions.Engine;
 import com.blueconic.browscap.UserAgentParser;
+import com.blueconic.browscap.impl.FilterSelector.Candidate;
 
 /**
  * This class is responsible for determining the best matching useragent rule to determine the properties for a
@@ -21,43 +28,104 @@ import com.blueconic.browscap.UserAgentParser;
  */
 class UserAgentParserImpl implements UserAgentParser {
 
-    // Common substrings to filter irrelevant rules and speed up processing
-    static final String[] COMMON = {"-", "0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "profile", "player",
-            "compatible", "android", "google", "tab", "transformer", "lenovo", "micro", "edge", "safari", "opera",
-            "chrome", "firefox", "msie", "chromium", "cpu os ", "cpu iphone os ", "windows nt ", "mac os x ", "linux",
-            "bsd", "windows phone", "iphone", "pad", "blackberry", "nokia", "alcatel", "ucbrowser", "mobile", "ie",
-            "mercury", "samsung", "browser", "wow64", "silk", "lunascape", "crios", "epiphany", "konqueror", "version",
-            "rv:", "build", "bot", "like gecko", "applewebkit", "trident", "mozilla", "windows nt 4", "windows nt 5.0",
-            "windows nt 5.1", "windows nt 5.2", "windows nt 6.0", "windows nt 6.1", "windows nt 6.2", "windows nt 6.3",
-            "windows nt 10.0", "android?4.0", "android?4.1", "android?4.2", "android?4.3", "android?4.4", "android?2.3",
-            "android?5"};
-
-    // Common prefixes to filter irrelevant rules and speed up processing
-    static final String[] FILTER_PREFIXES = {"mozilla/5.0", "mozilla/4"};
-
-    // All useragent rule ordered by size and alphabetically
-    private final Rule[] myRules;
+    // All useragent rules ordered by size and alphabetically, compiled into arrays
+    private final RuleTable myRules;
 
     // Filters for filtering irrelevant rules and speed up processing
     private final List<Filter> myFilters;
 
-    // The default Capabilities
+    // The filter for the length of the useragent, potentially null when the index is used instead
+    private final LengthFilter myLengthFilter;
+
+    // The index of rules by literal, potentially null when filters are used instead
+    private final RuleIndex myIndex;
+
+    // The rules matching a single useragent, looked up before searching the other rules
+    private final ExactMatchTable myExactRules;
+
+    // The rules which matched useragents with the same skeleton, potentially null when disabled
+    private final SkeletonCache mySkeletons;
+
+    // The trie for finding the rules with a matching prefix, potentially null when the index is used instead
+    private final RuleTrie myPrefixTrie;
+
+    // The trie for finding the rules with a matching postfix, potentially null when the index is used instead
+    private final RuleTrie myPostfixTrie;
+
+    // The default Capabilities, and its id which follows the ids of the rules if none of them has it
     private final Capabilities myDefaultCapabilities;
+    private final int myDefaultId;
 
     // The domain of literals for this parser
     private final LiteralDomain myDomain;
 
+    // The context per thread, potentially null when every parse uses a new context
+    private final ThreadLocal<ParseContext> myContexts;
+
     /**
-     * Creates a new parser based on a collection of rules.
+     * Creates a new parser based on a collection of rules, using the default options.
      * @param rules The rules, ordered by priority
      * @param domain The domain of literals
      * @param defaultCapabilities The default capabilities
      */
     UserAgentParserImpl(final Rule[] rules, final LiteralDomain domain, final Capabilities defaultCapabilities) {
+        this(rules, domain, defaultCapabilities, new ParserOptions());
+    }
+
+    /**
+     * Creates a new parser based on a collection of rules.
+     * @param rules The rules, ordered by priority
+     * @param domain The domain of literals
+     * @param defaultCapabilities The default capabilities
+     * @param options The options for building the parser
+     */
+    UserAgentParserImpl(final Rule[] rules, final LiteralDomain domain, final Capabilities defaultCapabilities,
+            final ParserOptions options) {
+        this(getOrderedRules(rules), domain, defaultCapabilities, options, null, null);
+    }
+
+    /**
+     * Creates a new parser based on rules which are already ordered, e.g. when loaded from a snapshot. The filters
+     * may be specified with their masks, in which case they aren't selected and computed again.
+     * @param orderedRules The rules, ordered by priority
+     * @param domain The domain of literals
+     * @param defaultCapabilities The default capabilities
+     * @param options The options for building the parser
+     * @param filters The selected filters, or <code>null</code> to select them from the rules
+     * @param masks The rules discarded by each of the selected filters, or <code>null</code> to compute them
+     */
+    UserAgentParserImpl(final Rule[] orderedRules, final LiteralDomain domain, final Capabilities defaultCapabilities,
+            final ParserOptions options, final List<Candidate> filters, final RuleBitmap[] masks) {
         myDomain = domain;
-        myRules = getOrderedRules(rules);
-        myFilters = buildFilters();
+        myRules = new RuleTable(orderedRules);
+        myExactRules = new ExactMatchTable(myRules);
+        mySkeletons = options.getSkeletonCacheSize() > 0 ? new SkeletonCache(options.getSkeletonCacheSize()) : null;
         myDefaultCapabilities = defaultCapabilities;
+        final int defaultId = myRules.getCapabilitiesId(defaultCapabilities);
+        myDefaultId = defaultId >= 0 ? defaultId : myRules.getNrOfCapabilities();
+
+        // The rule objects are only used for building the data structures for parsing
+        final boolean useIndex = options.getEngine() == Engine.INDEX;
+        if (useIndex) {
+            myFilters = Collections.emptyList();
+        } else if (filters == null) {
+            myFilters = buildFilters(orderedRules, options.getNrOfFilters());
+        } else {
+            myFilters = createFilters(filters, masks);
+        }
+        myPrefixTrie = useIndex ? null : RuleTrie.forPrefixes(orderedRules);
+        myPostfixTrie = useIndex ? null : RuleTrie.forPostfixes(orderedRules);
+        myLengthFilter = useIndex ? null : new LengthFilter(myRules);
+
+        final Consumer<String> reporter = options.getReporter();
+        if (reporter != null) {
+            myFilters.stream().map(Filter::toString).forEach(reporter);
+        }
+
+        // All literals are known now, find them in a single pass when parsing
+        myDomain.compile();
+        myIndex = useIndex ? new RuleIndex(orderedRules, myRules, myDomain.getAutomaton()) : null;
+        myContexts = options.isReuseContexts() ? ThreadLocal.withInitial(this::createContext) : null;
     }
 
     /**
@@ -65,80 +133,292 @@ class UserAgentParserImpl implements UserAgentParser {
      */
     @Override
     public Capabilities parse(final String userAgent) {
-        if (userAgent == null || userAgent.isEmpty()) {
+        final int match = getMatch(userAgent);
+        return match >= 0 ? myRules.getCapabilities(match) : myDefaultCapabilities;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Capabilities parse(final CharSequence userAgent) {
+        final int match = getMatch(userAgent);
+        return match >= 0 ? myRules.getCapabilities(match) : myDefaultCapabilities;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Capabilities parse(final byte[] buffer, final int offset, final int length) {
+
+        // Reject the same arguments as decoding the bytes into a string, before resetting the context
+        requireNonNull(buffer, "buffer");
+        if (offset < 0 || length < 0 || offset > buffer.length - length) {
+            throw new IndexOutOfBoundsException(
+                    "offset " + offset + ", length " + length + ", buffer length " + buffer.length);
+        }
+        if (length == 0) {
+            return myDefaultCapabilities;
+        }
+        final ParseContext context = getContext();
+        final int match = getMatch(context.reset(buffer, offset, length), context);
+        return match >= 0 ? myRules.getCapabilities(match) : myDefaultCapabilities;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int parseToId(final String userAgent) {
+        final int match = getMatch(userAgent);
+        return match >= 0 ? myRules.getCapabilitiesId(match) : myDefaultId;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Capabilities byId(final int id) {
+        if (id == myDefaultId) {
             return myDefaultCapabilities;
         }
+        if (id < 0 || id >= myRules.getNrOfCapabilities()) {
+            throw new IllegalArgumentException("No capabilities with id " + id);
+        }
+        return myRules.getCapabilitiesById(id);
+    }
 
-        final SearchableString searchString = myDomain.getSearchableString(userAgent.toLowerCase());
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int getNrOfCapabilities() {
+        return Math.max(myRules.getNrOfCapabilities(), myDefaultId + 1);
+    }
+
+    // Returns the index of the first matching rule, or -1 if the default capabilities apply
+    private int getMatch(final CharSequence userAgent) {
+        if (userAgent == null || userAgent.length() == 0) {
+            return -1;
+        }
+        final ParseContext context = getContext();
+        return getMatch(context.reset(userAgent), context);
+    }
 
-        final BitSet includes = getIncludeRules(searchString, myFilters);
+    private int getMatch(final SearchableString searchString, final ParseContext context) {
+        // A useragent equal to the pattern of a rule without wildcards only needs a full search the first time. The
+        // table compares bytes, so it's skipped if the substitute character may stand for other characters.
+        final int exact = searchString.hasSubstitute() ? -1 : myExactRules.find(searchString);
+        final int match;
+        if (exact < 0) {
+            match = mySkeletons == null ? findMatch(searchString, context, myRules.getSize())
+                    : findHintedMatch(searchString, context);
+        } else if (myExactRules.getMatch(exact) != ExactMatchTable.UNRESOLVED) {
+            match = myExactRules.getMatch(exact);
+        } else {
+            match = findMatch(searchString, context, myRules.getSize());
+            myExactRules.setMatch(exact, match);
+        }
+        return match;
+    }
 
-        for (int i = includes.nextSetBit(0); i >= 0; i = includes.nextSetBit(i + 1)) {
-            final Rule rule = myRules[i];
-            if (rule.matches(searchString)) {
-                return rule.getCapabilities();
+    // Returns the index of the first matching rule, starting with the rule of the last useragent with the same skeleton
+    private int findHintedMatch(final SearchableString searchString, final ParseContext context) {
+        final int skeleton = SkeletonCache.getHash(searchString);
+        final int hint = mySkeletons.get(searchString, skeleton);
+
+        // A matching hint is the result, unless a rule with a higher priority matches as well
+        int match;
+        if (hint >= 0 && myRules.matches(hint, searchString)) {
+            match = findMatch(searchString, context, hint);
+            if (match < 0) {
+                match = hint;
             }
+        } else {
+            match = findMatch(searchString, context, myRules.getSize());
+        }
+        if (match >= 0 && match != hint) {
+            mySkeletons.put(searchString, skeleton, match);
         }
+        return match;
+    }
+
+    // Returns the index of the first matching rule before the limit, or -1 if no such rule matches
+    private int findMatch(final SearchableString searchString, final ParseContext context, final int limit) {
+        if (myIndex != null) {
+            return myIndex.findMatch(searchString, context, limit);
+        }
+
+        // Only determine which trie nodes match and which filters discard rules, the rules are added and removed per
+        // block
+        final int nrOfPrefixNodes = myPrefixTrie.findNodes(searchString, context, ParseContext.PREFIX_NODES);
+        final int nrOfPostfixNodes = myPostfixTrie.findNodes(searchString, context, ParseContext.POSTFIX_NODES);
+        final int[] prefixNodes = context.getBuffer(ParseContext.PREFIX_NODES, 0);
+        final int[] postfixNodes = context.getBuffer(ParseContext.POSTFIX_NODES, 0);
+        final int[] discarding = context.getBuffer(ParseContext.FILTERS, myFilters.size());
+        int nrOfDiscarding = 0;
+        for (int i = 0; i < myFilters.size(); i++) {
+            if (!myFilters.get(i).accepts(searchString)) {
+                discarding[nrOfDiscarding++] = i;
+            }
+        }
+
+        // Rules are ordered by priority, so the blocks after the one with the first match don't need to be filtered
+        final long[] includes = context.getBlockIncludes();
+        final long[] postfixMatches = context.getBlockMatches();
+        final int nrOfBlocks = (limit + BLOCK_SIZE - 1) >>> BLOCK_BITS;
+        for (int block = 0; block < nrOfBlocks; block++) {
+            fill(includes, 0);
+            myPrefixTrie.orInto(includes, block, prefixNodes, nrOfPrefixNodes);
+            if (isEmpty(includes)) {
+                continue;
+            }
+            fill(postfixMatches, 0);
+            myPostfixTrie.orInto(postfixMatches, block, postfixNodes, nrOfPostfixNodes);
+            for (int i = 0; i < BLOCK_WORDS; i++) {
+                includes[i] &= postfixMatches[i];
+            }
+            boolean hasRules = myLengthFilter.applyExcludes(searchString, includes, block);
+            for (int i = 0; hasRules && i < nrOfDiscarding; i++) {
+                hasRules = myFilters.get(discarding[i]).applyExcludes(includes, block);
+            }
+
+            for (int i = 0; hasRules && i < BLOCK_WORDS; i++) {
+                for (long word = includes[i]; word != 0; word &= word - 1) {
+                    final int rule = block << BLOCK_BITS | i << 6 | Long.numberOfTrailingZeros(word);
+                    if (rule >= limit) {
+                        return -1;
+                    }
+                    if (myRules.matches(rule, searchString)) {
+                        return rule;
+                    }
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isEmpty(final long[] words) {
+        long result = 0;
+        for (final long word : words) {
+            result |= word;
+        }
+        return result == 0;
+    }
+
+    private ParseContext getContext() {
+        return myContexts != null ? myContexts.get() : createContext();
+    }
+
+    private ParseContext createContext() {
+        return new ParseContext(myDomain.createSearchableString(), myRules.getSize());
+    }
 
-        return myDefaultCapabilities;
+    MutableRuleBitmap getIncludeRules(final SearchableString searchString, final List<Filter> filters) {
+        return getIncludeRules(searchString, filters, new ParseContext(searchString, myRules.getSize()));
     }
 
-    BitSet getIncludeRules(final SearchableString searchString, final List<Filter> filters) {
-        final BitSet excludes = new BitSet(myRules.length);
-        for (final Filter filter : filters) {
-            filter.applyExcludes(searchString, excludes);
+    private MutableRuleBitmap getIncludeRules(final SearchableString searchString, final List<Filter> filters,
+            final ParseContext context) {
+        final MutableRuleBitmap includes = getCandidateRules(searchString, context);
+
+        // Short useragents discard most rules by their length
+        myLengthFilter.applyExcludes(searchString, includes);
+
+        // Remove the rules discarded by the filters, without creating an iterator
+        for (int i = 0; i < filters.size(); i++) {
+            filters.get(i).applyExcludes(searchString, includes);
         }
+        return includes;
+    }
 
-        // Convert flip the excludes to determine the includes
-        excludes.flip(0, myRules.length);
-        return excludes;
+    // Start with the rules with a matching prefix, and only keep the ones with a matching postfix
+    private MutableRuleBitmap getCandidateRules(final SearchableString searchString, final ParseContext context) {
+        final MutableRuleBitmap includes = context.getIncludes();
+        myPrefixTrie.getMatches(searchString, includes, context);
+        myPostfixTrie.retainMatches(searchString, includes, context);
+        return includes;
     }
 
     // Sort by size and alphabet, so the first match can be returned immediately
     static Rule[] getOrderedRules(final Rule[] rules) {
 
-        final Comparator<Rule> c = Comparator.comparing(Rule::getSize).reversed().thenComparing(Rule::getPattern);
+        final Comparator<Rule> c = Comparator.comparingInt(Rule::getSize).reversed().thenComparing(Rule::getPattern);
 
         final Rule[] result = Arrays.copyOf(rules, rules.length);
         sort(result, c);
         return result;
     }
 
-    List<Filter> buildFilters() {
-        final List<Filter> result = new ArrayList<>();
+    // Build filters for the prefix and contains constraints that discard most rules
+    List<Filter> buildFilters(final Rule[] rules, final int nrOfFilters) {
+        return createFilters(new FilterSelector(rules).select(nrOfFilters), null);
+    }
 
-        // Build filters for specific prefix constraints
-        for (final String pattern : FILTER_PREFIXES) {
-            result.add(createPrefixFilter(pattern));
-        }
+    private List<Filter> createFilters(final List<Candidate> candidates, final RuleBitmap[] masks) {
 
-        // Build filters for specific contains constraints
-        Stream.of(COMMON).map(this::createContainsFilter).forEach(result::add);
+        // Each mask is computed from all rules, which is done in parallel for the filters
+        final RuleBitmap[] filterMasks = masks != null ? masks
+                : candidates.parallelStream().map(c -> getMask(c.getPattern(), c.isPrefix()))
+                        .toArray(RuleBitmap[]::new);
 
+        final List<Filter> result = new ArrayList<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            final Candidate candidate = candidates.get(i);
+            if (candidate.isPrefix()) {
+                result.add(createPrefixFilter(candidate.getPattern(), filterMasks[i]));
+            } else {
+                result.add(createContainsFilter(candidate.getPattern(), filterMasks[i]));
+            }
+        }
         return result;
     }
 
+    /**
+     * Returns the filters for discarding irrelevant rules.
+     * @return the filters, empty when the index is used instead
+     */
+    List<Filter> getFilters() {
+        return myFilters;
+    }
+
     Filter createContainsFilter(final String pattern) {
-        final Literal literal = myDomain.createLiteral(pattern);
+        return createContainsFilter(pattern, null);
+    }
 
-        final Predicate<SearchableString> pred = c -> c.getIndices(literal).length > 0;
+    private Filter createContainsFilter(final String pattern, final RuleBitmap mask) {
+        final Literal literal = myDomain.createLiteral(pattern);
 
-        final Predicate<Rule> matches = rule -> rule.requires(pattern);
+        final Predicate<SearchableString> pred = c -> c.contains(literal);
 
-        return new Filter(pred, matches);
+        return new Filter(pattern, false, pred, mask != null ? mask : getMask(pattern, false));
     }
 
     Filter createPrefixFilter(final String pattern) {
+        return createPrefixFilter(pattern, null);
+    }
+
+    private Filter createPrefixFilter(final String pattern, final RuleBitmap mask) {
         final Literal literal = myDomain.createLiteral(pattern);
 
         final Predicate<SearchableString> pred = s -> s.startsWith(literal);
 
-        final Predicate<Rule> matches = rule -> {
-            final Literal prefix = rule.getPrefix();
-            return prefix != null && prefix.toString().startsWith(pattern);
-        };
+        return new Filter(pattern, true, pred, mask != null ? mask : getMask(pattern, true));
+    }
+
+    // The rules requiring the pattern of a filter, either in their prefix or in any literal
+    private RuleBitmap getMask(final String pattern, final boolean isPrefix) {
+        final BitSet literals = myRules.getLiterals(
+                isPrefix ? literal -> literal.toString().startsWith(pattern) : literal -> literal.requires(pattern));
 
-        return new Filter(pred, matches);
+        final BitSet mask = new BitSet(myRules.getSize());
+        for (int i = 0; i < myRules.getSize(); i++) {
+            if (isPrefix ? myRules.hasPrefix(i, literals) : myRules.hasLiteral(i, literals)) {
+                mask.set(i);
+            }
+        }
+        return RuleBitmap.of(mask);
     }
 
     /**
@@ -146,28 +426,78 @@ class UserAgentParserImpl implements UserAgentParser {
      */
     class Filter {
 
+        private final String myPattern;
+        private final boolean myIsPrefix;
         private final Predicate<SearchableString> myUserAgentPredicate;
-        private final BitSet myMask;
+        private final RuleBitmap myMask;
 
         /**
          * Creates a filter.
+         * @param pattern The substring or prefix required by the filter
+         * @param isPrefix Whether the pattern is required as prefix
          * @param userAgentPredicate The predicate for matching user agents.
-         * @param patternPredicate The corresponding predicate for matching rule
+         * @param mask The rules which can't match a useragent without the pattern
          */
-        Filter(final Predicate<SearchableString> userAgentPredicate, final Predicate<Rule> patternPredicate) {
+        Filter(final String pattern, final boolean isPrefix, final Predicate<SearchableString> userAgentPredicate,
+                final RuleBitmap mask) {
+            myPattern = pattern;
+            myIsPrefix = isPrefix;
             myUserAgentPredicate = userAgentPredicate;
-            myMask = new BitSet(myRules.length);
-            for (int i = 0; i < myRules.length; i++) {
-                if (patternPredicate.test(myRules[i])) {
-                    myMask.set(i);
-                }
-            }
+            myMask = mask;
+        }
+
+        String getPattern() {
+            return myPattern;
+        }
+
+        boolean isPrefix() {
+            return myIsPrefix;
+        }
+
+        RuleBitmap getMask() {
+            return myMask;
         }
 
-        void applyExcludes(final SearchableString userAgent, final BitSet resultExcludes) {
-            if (!myUserAgentPredicate.test(userAgent)) {
-                resultExcludes.or(myMask);
+        void applyExcludes(final SearchableString userAgent, final MutableRuleBitmap resultIncludes) {
+            if (!accepts(userAgent)) {
+                resultIncludes.andNot(myMask);
             }
         }
+
+        /**
+         * Tests whether a useragent meets the predicate, in which case the filter doesn't discard any rules.
+         * @param userAgent The useragent
+         * @return <code>true</code> if the useragent meets the predicate, <code>false</code> otherwise
+         */
+        boolean accepts(final SearchableString userAgent) {
+            return myUserAgentPredicate.test(userAgent);
+        }
+
+        /**
+         * Removes the rules of a single block, for a useragent which doesn't meet the predicate.
+         * @param words The words of the block with the rules to check
+         * @param block The block number
+         * @return <code>false</code> if the words are known to be empty now, <code>true</code> otherwise
+         */
+        boolean applyExcludes(final long[] words, final int block) {
+            return myMask.andNotInto(words, block);
+        }
+
+        /**
+         * Returns the number of rules discarded when a useragent doesn't meet the predicate.
+         * @return the number of discarded rules
+         */
+        int getExcludeCount() {
+            return myMask.getCardinality();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return (myIsPrefix ? "prefix " : "contains ") + myPattern + " discards " + getExcludeCount() + " of "
+                    + myRules.getSize() + " rules";
+        }
     }
 }
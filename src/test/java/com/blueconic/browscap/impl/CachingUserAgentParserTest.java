@@ -0,0 +1,78 @@
+package com.blueconic.browscap.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.blueconic.browscap.CachingUserAgentParser;
+import com.blueconic.browscap.Capabilities;
+import com.blueconic.browscap.UserAgentParser;
+
+class CachingUserAgentParserTest {
+
+    private final AtomicInteger myCalls = new AtomicInteger();
+    private final UserAgentParser myParser = userAgent -> {
+        myCalls.incrementAndGet();
+        return new CapabilitiesImpl(new String[]{userAgent}, null);
+    };
+
+    @Test
+    void testHits() {
+        final CachingUserAgentParser parser = new CachingUserAgentParser(myParser, 10);
+
+        final Capabilities first = parser.parse("Mozilla/5.0 Chrome/120.0");
+        assertSame(first, parser.parse("Mozilla/5.0 Chrome/120.0"));
+        assertEquals(1, myCalls.get());
+        assertEquals(1, parser.getHitCount());
+        assertEquals(1, parser.getMissCount());
+        assertEquals(1, parser.getSize());
+
+        // Useragents without capabilities are passed on
+        assertNull(new CachingUserAgentParser(userAgent -> null, 10).parse(null));
+    }
+
+    @Test
+    void testLimits() {
+        final CachingUserAgentParser parser = new CachingUserAgentParser(myParser, 100);
+        for (int i = 0; i < 1000; i++) {
+            parser.parse("agent " + i);
+        }
+        assertTrue(parser.getSize() <= 100);
+        assertEquals(1000 - parser.getSize(), parser.getEvictionCount());
+
+        // The useragents are removed to respect the weight, a useragent heavier than its segment isn't stored
+        final CachingUserAgentParser weighted = new CachingUserAgentParser(myParser, 100, 160);
+        for (int i = 0; i < 100; i++) {
+            weighted.parse("agent " + i);
+        }
+        assertTrue(weighted.getWeight() <= 160);
+        weighted.clear();
+        weighted.parse("a long useragent which exceeds the weight of a segment");
+        assertEquals(0, weighted.getSize());
+    }
+
+    @Test
+    void testScanResistance() {
+        final CachingUserAgentParser parser = new CachingUserAgentParser(myParser, 1600);
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 50; j++) {
+                parser.parse("popular " + j);
+            }
+        }
+
+        // A scan of unique useragents doesn't replace the frequently requested ones
+        for (int i = 0; i < 10_000; i++) {
+            parser.parse("unique " + i);
+        }
+        final long hits = parser.getHitCount();
+        for (int j = 0; j < 50; j++) {
+            parser.parse("popular " + j);
+        }
+        assertEquals(hits + 50, parser.getHitCount());
+    }
+}
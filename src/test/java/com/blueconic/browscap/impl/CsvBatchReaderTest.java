@@ -0,0 +1,28 @@
+package com.blueconic.browscap.impl;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.io.StringReader;
+
+import org.junit.jupiter.api.Test;
+
+class CsvBatchReaderTest {
+
+    @Test
+    void testBatches() throws IOException {
+        final String csv = "\"a\",\"b\"\n\"multi\nline\",\"c\"\"\n\"\n\"d\",\"e\"\nlast";
+        final CsvBatchReader reader = new CsvBatchReader(new StringReader(csv), 4);
+
+        // A batch is at least the batch size, and doesn't end at a line separator within quotes
+        assertEquals("\"a\",\"b\"\n", reader.next());
+        assertEquals("\"multi\nline\",\"c\"\"\n\"\n", reader.next());
+        assertEquals("\"d\",\"e\"\n", reader.next());
+        assertEquals("last", reader.next());
+        assertNull(reader.next());
+
+        // Small batches are combined
+        assertEquals(csv, new CsvBatchReader(new StringReader(csv), 1 << 20).next());
+    }
+}
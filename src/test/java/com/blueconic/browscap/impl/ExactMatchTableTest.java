@@ -0,0 +1,60 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.BrowsCapField.BROWSER;
+import static com.blueconic.browscap.impl.UserAgentFileParserTest.DEFAULT;
+import static com.blueconic.browscap.impl.UserAgentFileParserTest.getCapabilities;
+import static java.util.Collections.singleton;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.blueconic.browscap.Capabilities;
+import com.blueconic.browscap.ParserOptions;
+import com.blueconic.browscap.ParserOptions.Engine;
+import org.junit.jupiter.api.Test;
+
+class ExactMatchTableTest {
+
+    @Test
+    void testFind() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final Rule[] rules = {parser.createRule("my bot/1.0", DEFAULT), parser.createRule("*bot*", DEFAULT),
+                parser.createRule("my app", DEFAULT), parser.createRule("my a?p", DEFAULT),
+                parser.createRule("my app", DEFAULT)};
+        final ExactMatchTable table = new ExactMatchTable(new RuleTable(rules));
+        final LiteralDomain domain = parser.getDomain();
+
+        final int bot = table.find(domain.getSearchableString("my bot/1.0"));
+        assertTrue(bot >= 0);
+        assertEquals(ExactMatchTable.UNRESOLVED, table.getMatch(bot));
+        table.setMatch(bot, 0);
+        assertEquals(0, table.getMatch(bot));
+
+        // Patterns with a question mark are left to the normal search
+        assertTrue(table.find(domain.getSearchableString("my app")) >= 0);
+        assertEquals(-1, table.find(domain.getSearchableString("my asp")));
+        assertEquals(-1, table.find(domain.getSearchableString("my bot")));
+        assertEquals(-1, table.find(domain.getSearchableString("my bot/1.00")));
+        assertEquals(-1, table.find(domain.getSearchableString("")));
+    }
+
+    @Test
+    void testPriority() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final Capabilities exact = getCapabilities(parser, "Exact");
+        final Capabilities wildcard = getCapabilities(parser, "Wildcard");
+
+        // The rule with wildcards has a longer pattern, so it has a higher priority
+        final Rule[] rules = {parser.createRule("my bot", exact), parser.createRule("my* bot", wildcard),
+                parser.createRule("your bot", exact), parser.createRule("*", DEFAULT)};
+        for (final Engine engine : Engine.values()) {
+            final UserAgentParserImpl userAgentParser = new UserAgentParserImpl(rules, parser.getDomain(), DEFAULT,
+                    new ParserOptions().setEngine(engine));
+            for (int i = 0; i < 2; i++) {
+                assertSame(wildcard, userAgentParser.parse("My Bot"), engine.name());
+                assertSame(exact, userAgentParser.parse("your bot"), engine.name());
+                assertSame(wildcard, userAgentParser.parse("my other bot"), engine.name());
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.BrowsCapField.BROWSER;
+import static com.blueconic.browscap.impl.FilterSelector.getContainsCandidates;
+import static com.blueconic.browscap.impl.FilterSelector.getPrefixCandidates;
+import static com.blueconic.browscap.impl.UserAgentFileParserTest.DEFAULT;
+import static java.util.Collections.singleton;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import com.blueconic.browscap.ParserOptions;
+import com.blueconic.browscap.impl.FilterSelector.Candidate;
+import org.junit.jupiter.api.Test;
+
+class FilterSelectorTest {
+
+    @Test
+    void testGetContainsCandidates() {
+        final Set<String> candidates = getContainsCandidates("mozilla/5.0 (windows nt 6.1; wow64) applewebkit/");
+        assertTrue(candidates.contains("windows nt 6.1"));
+        assertTrue(candidates.contains("windows"));
+        assertTrue(candidates.contains("wow64"));
+        assertTrue(candidates.contains("applewebkit"));
+        assertTrue(candidates.contains("6"));
+        assertTrue(candidates.contains(";"));
+        assertFalse(candidates.contains(" "));
+
+        final Set<String> questionMark = getContainsCandidates("android?4.0");
+        assertTrue(questionMark.contains("android?4.0"));
+        assertTrue(questionMark.contains("android"));
+        assertFalse(questionMark.contains("?"));
+    }
+
+    @Test
+    void testGetPrefixCandidates() {
+        final Set<String> candidates = getPrefixCandidates("mozilla/5.0 (");
+        assertTrue(candidates.contains("mozilla/5.0"));
+        assertTrue(candidates.contains("mozilla/5"));
+        assertEquals(2, candidates.size());
+    }
+
+    @Test
+    void testSelect() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final List<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            rules.add(parser.createRule("*windows nt " + i + "*chrome*", DEFAULT));
+            rules.add(parser.createRule("*android " + i + "*firefox*", DEFAULT));
+            rules.add(parser.createRule("mozilla/5.0 (*iphone os " + i + "*", DEFAULT));
+        }
+        rules.add(parser.createRule("*", DEFAULT));
+        final Rule[] ordered = UserAgentParserImpl.getOrderedRules(rules.toArray(new Rule[0]));
+
+        final List<Candidate> selected = new FilterSelector(ordered).select(3);
+        assertEquals(3, selected.size());
+
+        // A filter for one of the families should be selected
+        final List<String> patterns = new ArrayList<>();
+        selected.forEach(c -> patterns.add(c.getPattern()));
+        assertTrue(patterns.contains("windows"), patterns.toString());
+        assertTrue(new FilterSelector(ordered).select(0).isEmpty());
+    }
+
+    @Test
+    void testReport() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final Rule[] rules = {parser.createRule("*abc*def*", DEFAULT), parser.createRule("*abc*", DEFAULT),
+                parser.createRule("*xyz*", DEFAULT), parser.createRule("*xyz*123*", DEFAULT)};
+
+        final List<String> report = new ArrayList<>();
+        final ParserOptions options = new ParserOptions().setNrOfFilters(2).setReporter(report::add);
+        final UserAgentParserImpl userAgentParser =
+                new UserAgentParserImpl(rules, parser.getDomain(), DEFAULT, options);
+
+        assertEquals(2, report.size());
+        assertTrue(report.get(0).endsWith("of 4 rules"), report.get(0));
+        assertEquals(DEFAULT, userAgentParser.parse("no match"));
+    }
+}
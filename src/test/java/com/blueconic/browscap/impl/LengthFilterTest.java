@@ -0,0 +1,56 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.BrowsCapField.BROWSER;
+import static com.blueconic.browscap.impl.RuleTrieTest.toBitSet;
+import static com.blueconic.browscap.impl.UserAgentFileParserTest.DEFAULT;
+import static java.util.Collections.singleton;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.BitSet;
+
+import org.junit.jupiter.api.Test;
+
+class LengthFilterTest {
+
+    @Test
+    void testApplyExcludes() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final Rule[] rules = {parser.createRule("mozilla/5.0 (*windows nt*) chrome/*", DEFAULT),
+                parser.createRule("*curl/*", DEFAULT), parser.createRule("a?c", DEFAULT),
+                parser.createRule("*", DEFAULT)};
+        final RuleTable table = new RuleTable(rules);
+        assertEquals(32, table.getMinLength(0));
+        assertEquals(5, table.getMinLength(1));
+        assertEquals(3, table.getMinLength(2));
+        assertEquals(0, table.getMinLength(3));
+
+        final LengthFilter filter = new LengthFilter(table);
+        final LiteralDomain domain = parser.getDomain();
+
+        // Only the bucket of the length is applied, so rules may be kept although the useragent is too short
+        assertEquals(bits(2, 3), apply(filter, domain.getSearchableString("abc")));
+        assertEquals(bits(1, 2, 3), apply(filter, domain.getSearchableString("curl/")));
+        assertEquals(bits(1, 2, 3), apply(filter, domain.getSearchableString("curl/7.88.1 (linux)")));
+        assertEquals(bits(0, 1, 2, 3), apply(filter, domain.getSearchableString(
+                "mozilla/5.0 (windows nt 10.0) chrome/120.0")));
+        assertEquals(2, filter.getExcludeCount(0));
+        assertEquals(0, filter.getExcludeCount(1000));
+    }
+
+    private static BitSet apply(final LengthFilter filter, final SearchableString value) {
+        final MutableRuleBitmap includes = new MutableRuleBitmap(4);
+        for (int i = 0; i < 4; i++) {
+            includes.set(i);
+        }
+        filter.applyExcludes(value, includes);
+        return toBitSet(includes);
+    }
+
+    private static BitSet bits(final int... indices) {
+        final BitSet result = new BitSet();
+        for (final int index : indices) {
+            result.set(index);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,138 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.BrowsCapField.BROWSER;
+import static com.blueconic.browscap.BrowsCapField.DEVICE_TYPE;
+import static com.blueconic.browscap.BrowsCapField.PLATFORM;
+import static com.blueconic.browscap.BrowsCapField.PLATFORM_MAKER;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.asList;
+import static java.util.Arrays.copyOf;
+import static java.util.Collections.singleton;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.zip.CRC32;
+
+import com.blueconic.browscap.BrowsCapField;
+import com.blueconic.browscap.ParseException;
+import com.blueconic.browscap.ParserOptions;
+import com.blueconic.browscap.ParserOptions.Engine;
+import com.blueconic.browscap.UserAgentParser;
+import org.junit.jupiter.api.Test;
+
+class ParserSnapshotTest {
+
+    private static final String[] USER_AGENTS = {"Mozilla/5.0 (Windows NT 10.0) Chrome/120.0", "curl/7.88.1",
+            "Mozilla/5.0 (Linux; Android 14) Chrome/120.0 Mobile", "MyBot/1.0", "unknown", ""};
+
+    @Test
+    void testRoundTrip() throws IOException, ParseException {
+        final Collection<BrowsCapField> fields = asList(BROWSER, PLATFORM, DEVICE_TYPE, PLATFORM_MAKER);
+        final ByteBuffer snapshot = write(fields, new ParserOptions().setNrOfFilters(2));
+        assertEquals(EnumSet.copyOf(fields), ParserSnapshot.getFields(snapshot));
+
+        // The parser of the snapshot is the same as the one of the CSV, also for a subset of the fields
+        for (final Collection<BrowsCapField> loaded : asList(fields, singleton(BROWSER))) {
+            for (final Engine engine : Engine.values()) {
+                for (final int nrOfFilters : new int[]{2, 3}) {
+                    final ParserOptions options = new ParserOptions().setEngine(engine).setNrOfFilters(nrOfFilters);
+                    final UserAgentParser csvParser = UserAgentFileParser.parse(new StringReader(getCsv()), loaded,
+                            options);
+                    final UserAgentParser parser = UserAgentFileParser.parseSnapshot(snapshot, loaded, options);
+                    for (final String userAgent : USER_AGENTS) {
+                        assertEquals(csvParser.parse(userAgent).getValues(), parser.parse(userAgent).getValues(),
+                                userAgent);
+                    }
+                    assertEquals(csvParser.getNrOfCapabilities(), parser.getNrOfCapabilities());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testInvalid() throws IOException, ParseException {
+        final ByteBuffer snapshot = write(singleton(BROWSER), new ParserOptions());
+        final ParserOptions options = new ParserOptions();
+
+        // Fields which weren't written can't be loaded
+        assertThrows(ParseException.class,
+                () -> UserAgentFileParser.parseSnapshot(snapshot, singleton(PLATFORM), options));
+
+        final ByteBuffer corrupt = ByteBuffer.allocate(snapshot.remaining()).put(snapshot.duplicate());
+        corrupt.put(corrupt.limit() - 1, (byte) (corrupt.get(corrupt.limit() - 1) + 1)).flip();
+        assertThrows(ParseException.class,
+                () -> UserAgentFileParser.parseSnapshot(corrupt, singleton(BROWSER), options));
+
+        final ByteBuffer truncated = (ByteBuffer) snapshot.duplicate().limit(snapshot.limit() - 1);
+        assertThrows(ParseException.class,
+                () -> UserAgentFileParser.parseSnapshot(truncated, singleton(BROWSER), options));
+
+        final ByteBuffer other = ByteBuffer.wrap("Browser,Platform".getBytes(UTF_8));
+        assertThrows(ParseException.class, () -> UserAgentFileParser.parseSnapshot(other, singleton(BROWSER), options));
+
+        // A string length which doesn't fit the payload is rejected in both entry points, also with a valid checksum
+        for (final int length : new int[]{-2, Integer.MIN_VALUE, snapshot.remaining(), Integer.MAX_VALUE}) {
+            final ByteBuffer invalid = withFirstStringLength(snapshot, length);
+            assertThrows(ParseException.class, () -> ParserSnapshot.getFields(invalid));
+            assertThrows(ParseException.class,
+                    () -> UserAgentFileParser.parseSnapshot(invalid, singleton(BROWSER), options));
+        }
+    }
+
+    @Test
+    void testReadStream() throws IOException, ParseException {
+        final ByteBuffer snapshot = write(singleton(BROWSER), new ParserOptions());
+        final byte[] bytes = snapshot.array();
+
+        // The snapshot is read up to its end, also if the stream continues
+        final byte[] padded = copyOf(bytes, bytes.length + 1);
+        assertEquals(snapshot, UserAgentFileParser.readSnapshot(new ByteArrayInputStream(padded)));
+
+        final byte[] truncated = copyOf(bytes, bytes.length - 1);
+        assertThrows(ParseException.class, () -> UserAgentFileParser.readSnapshot(new ByteArrayInputStream(truncated)));
+        final byte[] other = "Browser,Platform,DeviceType".getBytes(UTF_8);
+        assertThrows(ParseException.class, () -> UserAgentFileParser.readSnapshot(new ByteArrayInputStream(other)));
+    }
+
+    // Replaces the length of the name of the first field, which follows the header and the number of fields
+    private static ByteBuffer withFirstStringLength(final ByteBuffer snapshot, final int length) {
+        final ByteBuffer result = ByteBuffer.allocate(snapshot.remaining()).put(snapshot.duplicate());
+        result.putInt(20, length);
+        final CRC32 checksum = new CRC32();
+        checksum.update(result.array(), 16, result.capacity() - 16);
+        result.putInt(12, (int) checksum.getValue());
+        result.flip();
+        return result;
+    }
+
+    private static ByteBuffer write(final Collection<BrowsCapField> fields, final ParserOptions options)
+            throws IOException, ParseException {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        UserAgentFileParser.writeSnapshot(new StringReader(getCsv()), fields, options, output);
+        return ByteBuffer.wrap(output.toByteArray());
+    }
+
+    // A CSV file with only the pattern, browser and platform filled in
+    private static String getCsv() {
+        final String[][] rows = {{"Mozilla/5.0 (*Windows NT 10.0*) Chrome/*", "Chrome", "Win10"},
+                {"Mozilla/5.0 (*Android*) Chrome/* Mobile*", "Chrome", "Android"},
+                {"Mozilla/5.0 (*Android*) Chrome/*", "Chrome", "Android"}, {"curl/*", "cURL", "unknown"},
+                {"MyBot/?.?", "MyBot", ""}, {"*", "Default Browser", "unknown"}};
+        final StringBuilder result = new StringBuilder();
+        for (final String[] row : rows) {
+            final String[] columns = new String[48];
+            columns[0] = row[0];
+            columns[BROWSER.getIndex()] = row[1];
+            columns[PLATFORM.getIndex()] = row[2];
+            result.append(String.join(",", asList(columns)).replace("null", "")).append('\n');
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.impl.RuleTrieTest.toBitSet;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+
+import com.blueconic.browscap.ParseException;
+import com.blueconic.browscap.impl.RuleBitmap.ArrayContainer;
+import com.blueconic.browscap.impl.RuleBitmap.BitmapContainer;
+import com.blueconic.browscap.impl.RuleBitmap.RunContainer;
+import org.junit.jupiter.api.Test;
+
+class RuleBitmapTest {
+
+    private static final int SIZE = 200_000;
+
+    @Test
+    void testContainers() {
+        final BitSet bits = new BitSet(SIZE);
+
+        // A sparse chunk, a chunk with runs, a dense chunk and a partial chunk
+        final Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            bits.set(random.nextInt(65536));
+        }
+        bits.set(65536 + 100, 65536 + 20000);
+        bits.set(65536 + 30000, 65536 + 30064);
+        for (int i = 2 * 65536; i < SIZE; i++) {
+            if (random.nextBoolean()) {
+                bits.set(i);
+            }
+        }
+
+        final RuleBitmap bitmap = RuleBitmap.of(bits);
+        assertEquals(bits.cardinality(), bitmap.getCardinality());
+        assertEquals(4, bitmap.getNrOfContainers());
+        assertTrue(bitmap.getContainer(0) instanceof ArrayContainer);
+        assertTrue(bitmap.getContainer(1) instanceof RunContainer);
+        assertTrue(bitmap.getContainer(2) instanceof BitmapContainer);
+
+        final MutableRuleBitmap result = new MutableRuleBitmap(SIZE);
+        result.or(bitmap);
+        assertEquals(bits, toBitSet(result));
+        assertEquals(bits.cardinality(), result.cardinality());
+
+        result.andNot(bitmap);
+        assertEquals(-1, result.nextSetBit(0));
+    }
+
+    @Test
+    void testOperations() {
+        final Random random = new Random(7);
+        final BitSet first = randomBits(random);
+        final BitSet second = randomBits(random);
+
+        final MutableRuleBitmap result = new MutableRuleBitmap(SIZE);
+        result.or(RuleBitmap.of(first));
+
+        // Removing only touches the chunks which have rules
+        final BitSet expected = (BitSet) first.clone();
+        expected.andNot(second);
+        result.andNot(RuleBitmap.of(second));
+        assertEquals(expected, toBitSet(result));
+
+        final MutableRuleBitmap other = new MutableRuleBitmap(SIZE);
+        other.or(RuleBitmap.of(second));
+        other.set(SIZE - 1);
+        second.set(SIZE - 1);
+        expected.or(second);
+        result.or(other);
+        assertEquals(expected, toBitSet(result));
+
+        expected.and(second);
+        result.and(other);
+        assertEquals(expected, toBitSet(result));
+        assertTrue(result.get(SIZE - 1));
+        assertFalse(new MutableRuleBitmap(SIZE).get(0));
+    }
+
+    @Test
+    void testBlockOperations() {
+        final Random random = new Random(11);
+        final BitSet first = randomBits(random);
+        final BitSet second = randomBits(random);
+
+        // A sparse chunk, a chunk with runs and a dense chunk
+        second.clear(0, 2 * 65536);
+        for (int i = 0; i < 100; i++) {
+            second.set(random.nextInt(65536));
+        }
+        second.set(65536 + 100, 65536 + 20000);
+        for (int i = 2 * 65536; i < 3 * 65536; i++) {
+            if (random.nextBoolean()) {
+                second.set(i);
+            }
+        }
+        final RuleBitmap other = RuleBitmap.of(second);
+        assertTrue(other.getContainer(0) instanceof ArrayContainer);
+        assertTrue(other.getContainer(1) instanceof RunContainer);
+        assertTrue(other.getContainer(2) instanceof BitmapContainer);
+
+        // Only the rules of the specified block are added or removed
+        for (int block = 0; block * RuleBitmap.BLOCK_SIZE < SIZE; block++) {
+            final int start = block * RuleBitmap.BLOCK_SIZE;
+            final int end = start + RuleBitmap.BLOCK_SIZE;
+            final long[] words = first.get(start, end).toLongArray();
+            final long[] blockWords = Arrays.copyOf(words, RuleBitmap.BLOCK_WORDS);
+            other.orInto(blockWords, block);
+            final BitSet expected = first.get(start, end);
+            expected.or(second.get(start, end));
+            assertEquals(expected, BitSet.valueOf(blockWords));
+
+            other.andNotInto(blockWords, block);
+            expected.andNot(second.get(start, end));
+            assertEquals(expected, BitSet.valueOf(blockWords));
+        }
+    }
+
+    @Test
+    void testWriteAndRead() throws IOException, ParseException {
+        final BitSet bits = new BitSet(SIZE);
+        final Random random = new Random(3);
+        for (int i = 0; i < 100; i++) {
+            bits.set(random.nextInt(65536));
+        }
+        bits.set(65536 + 100, 65536 + 20000);
+        bits.or(randomBits(random).get(2 * 65536, SIZE));
+        final RuleBitmap bitmap = RuleBitmap.of(bits);
+
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        bitmap.write(new DataOutputStream(output));
+        final ByteBuffer input = ByteBuffer.wrap(output.toByteArray());
+        final RuleBitmap result = RuleBitmap.read(input, SIZE);
+        assertEquals(0, input.remaining());
+        assertEquals(bitmap.getNrOfContainers(), result.getNrOfContainers());
+        assertEquals(bits.cardinality(), result.getCardinality());
+        final MutableRuleBitmap rules = new MutableRuleBitmap(SIZE);
+        rules.or(result);
+        assertEquals(bits, toBitSet(rules));
+
+        // The chunks should fit the number of rules
+        assertThrows(ParseException.class, () -> RuleBitmap.read(ByteBuffer.wrap(output.toByteArray()), 65536));
+    }
+
+    private static BitSet randomBits(final Random random) {
+        final BitSet result = new BitSet(SIZE);
+        for (int i = 0; i < 3000; i++) {
+            final int start = random.nextInt(SIZE);
+            result.set(start, Math.min(SIZE, start + random.nextInt(100)));
+        }
+        return result;
+    }
+}
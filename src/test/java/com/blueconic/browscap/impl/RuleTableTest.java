@@ -0,0 +1,66 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.BrowsCapField.BROWSER;
+import static com.blueconic.browscap.impl.UserAgentFileParserTest.DEFAULT;
+import static com.blueconic.browscap.impl.UserAgentFileParserTest.getCapabilities;
+import static java.util.Collections.singleton;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.BitSet;
+import java.util.stream.Stream;
+
+import com.blueconic.browscap.Capabilities;
+import org.junit.jupiter.api.Test;
+
+class RuleTableTest {
+
+    @Test
+    void testMatches() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final String[] patterns = {"a", "?a?", "*abc*", "abc*", "*abc", "abc*def", "*abc*def*", "a*b*c", "*", "a*"};
+        final Rule[] rules = new Rule[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            rules[i] = parser.createRule(patterns[i], DEFAULT);
+        }
+        final RuleTable table = new RuleTable(rules);
+        assertEquals(rules.length, table.getSize());
+
+        // The compiled rules match like the patterns as regular expressions
+        final String[] useragents = {"", "a", "bac", "abc", "1abc3", "abcdef", "abc_def", "1abc2def3", "ab", "axbxc"};
+        for (final String useragent : useragents) {
+            for (int i = 0; i < rules.length; i++) {
+                final SearchableString value = parser.getDomain().getSearchableString(useragent);
+                final String regex = patterns[i].replace("?", ".").replace("*", ".*");
+                assertEquals(useragent.matches(regex), table.matches(i, value), patterns[i] + " " + useragent);
+            }
+        }
+
+        for (final String required : new String[]{"a", "bc", "def", "abcdef"}) {
+            final BitSet literals = table.getLiterals(literal -> literal.requires(required));
+            final BitSet prefixes = table.getLiterals(literal -> literal.toString().startsWith(required));
+            for (int i = 0; i < rules.length; i++) {
+                final boolean requires = Stream.of(rules[i].getLiterals()).anyMatch(l -> l.requires(required));
+                assertEquals(requires, table.hasLiteral(i, literals), patterns[i] + " " + required);
+                final Literal prefix = rules[i].getPrefix();
+                assertEquals(prefix != null && prefix.toString().startsWith(required), table.hasPrefix(i, prefixes));
+            }
+        }
+        assertSame(rules[3].getPrefix(), table.getPrefix(3));
+        assertNull(table.getPrefix(2));
+    }
+
+    @Test
+    void testCapabilities() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final Capabilities chrome = getCapabilities(parser, "Chrome");
+
+        final Rule[] rules = {parser.createRule("*chrome*", chrome), parser.createRule("*x*", DEFAULT),
+                parser.createRule("*chromium*", chrome)};
+        final RuleTable table = new RuleTable(rules);
+        assertSame(chrome, table.getCapabilities(0));
+        assertSame(DEFAULT, table.getCapabilities(1));
+        assertSame(chrome, table.getCapabilities(2));
+    }
+}
@@ -127,25 +127,31 @@ class RuleTest {
     @Test
     void testRequires() {
         final Rule rule = getRule("*abc*def*");
-        assertTrue(rule.requires("abc"));
-        assertTrue(rule.requires("def"));
-        assertTrue(rule.requires("bc"));
-        assertFalse(rule.requires("abcdef"));
+        assertTrue(requires(rule, "abc"));
+        assertTrue(requires(rule, "def"));
+        assertTrue(requires(rule, "bc"));
+        assertFalse(requires(rule, "abcdef"));
 
         final Rule prepost = getRule("abc*def");
-        assertTrue(prepost.requires("abc"));
-        assertTrue(prepost.requires("def"));
-        assertTrue(prepost.requires("bc"));
+        assertTrue(requires(prepost, "abc"));
+        assertTrue(requires(prepost, "def"));
+        assertTrue(requires(prepost, "bc"));
     }
 
     private Rule getRule(final String pattern) {
         final Rule rule = myParser.createRule(pattern, DEFAULT);
         assertEquals(pattern, rule.getPattern());
+        assertEquals(pattern, Rule.getPattern(rule.getPrefix(), rule.getSuffixes(), rule.getPostfix()));
         return rule;
     }
 
     private boolean matches(final Rule rule, final String useragent) {
         final SearchableString searchableString = myParser.getDomain().getSearchableString(useragent);
-        return rule.matches(searchableString);
+        return new RuleTable(new Rule[]{rule}).matches(0, searchableString);
+    }
+
+    private static boolean requires(final Rule rule, final String value) {
+        final RuleTable table = new RuleTable(new Rule[]{rule});
+        return table.hasLiteral(0, table.getLiterals(literal -> literal.requires(value)));
     }
 }
\ No newline at end of file
@@ -0,0 +1,119 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.BrowsCapField.BROWSER;
+import static com.blueconic.browscap.impl.UserAgentFileParserTest.DEFAULT;
+import static java.util.Collections.singleton;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.BitSet;
+
+import org.junit.jupiter.api.Test;
+
+class RuleTrieTest {
+
+    @Test
+    void testGetMatches() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final Rule[] rules = {parser.createRule("mozilla/5.0 (*", DEFAULT), parser.createRule("mozilla/?.0*", DEFAULT),
+                parser.createRule("mozilla*", DEFAULT), parser.createRule("opera/9*", DEFAULT),
+                parser.createRule("*chrome*", DEFAULT), parser.createRule("mozilla", DEFAULT)};
+        final RuleTrie trie = RuleTrie.forPrefixes(rules);
+        final LiteralDomain domain = parser.getDomain();
+
+        // Only the prefix is checked, so the last rule matches all useragents starting with "mozilla"
+        assertEquals(bits(0, 1, 2, 4, 5), getMatches(trie, domain, "mozilla/5.0 (windows)"));
+        assertEquals(bits(1, 2, 4, 5), getMatches(trie, domain, "mozilla/4.0 (windows)"));
+        assertEquals(bits(2, 4, 5), getMatches(trie, domain, "mozilla"));
+        assertEquals(bits(3, 4), getMatches(trie, domain, "opera/9.80"));
+        assertEquals(bits(4), getMatches(trie, domain, ""));
+    }
+
+    @Test
+    void testGetPostfixMatches() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final Rule[] rules = {parser.createRule("*(compatible; bot)", DEFAULT), parser.createRule("*bot?", DEFAULT),
+                parser.createRule("*bot*", DEFAULT), parser.createRule("mozilla*bot)", DEFAULT),
+                parser.createRule("my bot)", DEFAULT)};
+        final RuleTrie trie = RuleTrie.forPostfixes(rules);
+        final LiteralDomain domain = parser.getDomain();
+
+        // A rule without wildcards should end with its pattern as well
+        assertEquals(bits(0, 1, 2, 3), getMatches(trie, domain, "mozilla (compatible; bot)"));
+        assertEquals(bits(1, 2, 3, 4), getMatches(trie, domain, "my bot)"));
+        assertEquals(bits(1, 2), getMatches(trie, domain, "bot!"));
+        assertEquals(bits(2), getMatches(trie, domain, ""));
+    }
+
+    @Test
+    void testRetainMatches() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final Rule[] rules = {parser.createRule("*bot)", DEFAULT), parser.createRule("*spider)", DEFAULT),
+                parser.createRule("*bot*", DEFAULT)};
+        final RuleTrie trie = RuleTrie.forPostfixes(rules);
+
+        final SearchableString value = parser.getDomain().getSearchableString("my spider)");
+        final ParseContext context = new ParseContext(value, rules.length);
+        final MutableRuleBitmap includes = context.getIncludes();
+        includes.set(1);
+        includes.set(2);
+        trie.retainMatches(value, includes, context);
+        assertEquals(bits(1, 2), toBitSet(includes));
+
+        value.reset("my bot)");
+        trie.retainMatches(value, includes, context);
+        assertEquals(bits(2), toBitSet(includes));
+    }
+
+    @Test
+    void testOrIntoBlocks() {
+        // Rules in multiple blocks, for a node with a mask, nodes with rule lists and rules without a prefix
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final Rule[] rules = new Rule[3 * RuleBitmap.BLOCK_SIZE + 100];
+        for (int i = 0; i < rules.length; i++) {
+            final String pattern = i % 2 == 0 ? "mozilla*" : i % 5 == 0 ? "*bot" : "opera" + i % 3 + "*";
+            rules[i] = parser.createRule(pattern, DEFAULT);
+        }
+        final RuleTrie trie = RuleTrie.forPrefixes(rules);
+
+        for (final String useragent : new String[]{"mozilla/5.0", "opera1 bot", "curl"}) {
+            final SearchableString value = parser.getDomain().getSearchableString(useragent);
+            final BitSet expected = toBitSet(trie.getMatches(value));
+
+            // Skipping a block skips the rules of the nodes in that block
+            final ParseContext context = new ParseContext(value, rules.length);
+            final int nrOfNodes = trie.findNodes(value, context, ParseContext.PREFIX_NODES);
+            final int[] nodes = context.getBuffer(ParseContext.PREFIX_NODES, 0);
+            final BitSet result = new BitSet();
+            for (final int block : new int[]{0, 2, 3}) {
+                final long[] words = new long[RuleBitmap.BLOCK_WORDS];
+                trie.orInto(words, block, nodes, nrOfNodes);
+                final BitSet blockBits = BitSet.valueOf(words);
+                for (int i = blockBits.nextSetBit(0); i >= 0; i = blockBits.nextSetBit(i + 1)) {
+                    result.set(block * RuleBitmap.BLOCK_SIZE + i);
+                }
+            }
+            expected.clear(RuleBitmap.BLOCK_SIZE, 2 * RuleBitmap.BLOCK_SIZE);
+            assertEquals(expected, result, useragent);
+        }
+    }
+
+    private static BitSet getMatches(final RuleTrie trie, final LiteralDomain domain, final String useragent) {
+        return toBitSet(trie.getMatches(domain.getSearchableString(useragent)));
+    }
+
+    static BitSet toBitSet(final MutableRuleBitmap bitmap) {
+        final BitSet result = new BitSet();
+        for (int i = bitmap.nextSetBit(0); i >= 0; i = bitmap.nextSetBit(i + 1)) {
+            result.set(i);
+        }
+        return result;
+    }
+
+    private static BitSet bits(final int... indices) {
+        final BitSet result = new BitSet();
+        for (final int index : indices) {
+            result.set(index);
+        }
+        return result;
+    }
+}
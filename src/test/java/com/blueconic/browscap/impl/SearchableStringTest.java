@@ -1,5 +1,7 @@
 package com.blueconic.browscap.impl;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.util.Arrays.asList;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
@@ -7,7 +9,9 @@ import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
-import com.blueconic.browscap.impl.SearchableString.Cache;
+import java.util.ArrayList;
+import java.util.List;
+
 import org.junit.jupiter.api.Test;
 
 class SearchableStringTest {
@@ -62,16 +66,171 @@ class SearchableStringTest {
     }
 
     @Test
-    void testCache() {
-        final Cache cache = new Cache();
+    void testSinglePass() {
+        final LiteralDomain domain = new LiteralDomain();
+
+        final Literal[] literals = {domain.createLiteral("abc"), domain.createLiteral("ab"),
+                domain.createLiteral("b"), domain.createLiteral("bab"), domain.createLiteral("?ab"),
+                domain.createLiteral("c"), domain.createLiteral("ab"), domain.createLiteral("x"),
+                domain.createLiteral("abababc")};
+        domain.compile();
+
+        final SearchableString singlePass = domain.getSearchableString("abababc");
+        final SearchableString individual = new SearchableString("abababc");
+        for (final Literal literal : literals) {
+            assertArrayEquals(individual.getIndices(literal), singlePass.getIndices(literal), literal.toString());
+        }
+
+        // Literals created after compiling are searched for individually
+        final Literal late = domain.createLiteral("ba");
+        assertArrayEquals(new int[]{1, 3}, domain.getSearchableString("abababc").getIndices(late));
+    }
+
+    @Test
+    void testReset() {
+        final LiteralDomain domain = new LiteralDomain();
+        final Literal ab = domain.createLiteral("ab");
+        final Literal c = domain.createLiteral("c");
+        domain.compile();
+
+        final SearchableString value = domain.getSearchableString("abababc");
+        assertEquals(2, value.indexOf(ab, 1));
+        assertEquals(-1, value.indexOf(ab, 5));
+        assertTrue(value.endsWith(c));
+
+        // Cached results of the previous value are discarded
+        value.resetToLowerCase("CAB");
+        assertEquals("cab", value.toString());
+        assertEquals(1, value.indexOf(ab, 0));
+        assertTrue(value.contains(c));
+        assertFalse(value.endsWith(c));
+        assertArrayEquals(new int[]{1}, value.getIndices(ab));
+
+        value.resetToLowerCase("\u00C9C");
+        assertEquals("\u00e9c", value.toString());
+        assertFalse(value.contains(ab));
+        assertTrue(value.endsWith(c));
+    }
+
+    @Test
+    void testResetBytes() {
+        final LiteralDomain domain = new LiteralDomain();
+        final Literal cafe = domain.createLiteral("café/1");
+        domain.compile();
+
+        // The bytes are converted like the equivalent string, also when only a part of the buffer is used
+        final SearchableString value = domain.getSearchableString("");
+        final byte[] buffer = "xxMozilla CAFÉ/1 ÀÞxx".getBytes(ISO_8859_1);
+        value.resetToLowerCase(buffer, 2, buffer.length - 4);
+        assertEquals("mozilla café/1 àþ", value.toString());
+        assertTrue(value.contains(cafe));
+
+        value.resetToLowerCase(new StringBuilder("CAFÉ/1"));
+        assertTrue(value.startsWith(cafe));
+    }
+
+    @Test
+    void testFolding() {
+        final LiteralDomain domain = new LiteralDomain();
+        final Literal latin = domain.createLiteral("café");
+        final Literal wide = domain.createLiteral("中文");
+        domain.compile();
+
+        // Latin-1 characters are kept, other characters are represented by the same substitute on both sides
+        final SearchableString value = domain.getSearchableString("Café 中文");
+        assertEquals("Café \u001a\u001a", value.toString());
+        value.resetToLowerCase("CafÉ 中文");
+        assertTrue(value.contains(latin));
+        assertTrue(value.endsWith(wide));
+        assertEquals("\u001a\u001a", Literal.fold(wide.toString()));
+        assertEquals(Literal.toByte('é'), latin.byteAt(3));
+    }
+
+    @Test
+    void testSignature() {
+        final LiteralDomain domain = new LiteralDomain();
+        final Literal chrome = domain.createLiteral("chrome/");
+        final Literal any = domain.createLiteral("c?rome");
+        final Literal firefox = domain.createLiteral("firefox");
 
-        assertNull(cache.get(0));
-        cache.set(0, true);
-        assertTrue(cache.get(0));
+        // The signature of a contained literal is a subset, bigrams with question marks are ignored
+        final SearchableString value = domain.getSearchableString("mozilla/5.0 chrome/120.0");
+        final long signature = value.getSignature();
+        assertEquals(0, chrome.getSignature() & ~signature);
+        assertEquals(0, any.getSignature() & ~signature);
+        assertEquals(domain.createLiteral("rome").getSignature(), any.getSignature());
+        assertTrue((firefox.getSignature() & ~signature) != 0);
+        assertEquals(0, domain.createLiteral("x").getSignature());
 
-        assertNull(cache.get(1));
-        cache.set(1, false);
-        assertFalse(cache.get(1));
+        value.reset("firefox");
+        assertEquals(firefox.getSignature(), value.getSignature());
+    }
+
+    @Test
+    void testManyLiterals() {
+        final LiteralDomain domain = new LiteralDomain();
+        final List<Literal> literals = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            literals.add(domain.createLiteral("x" + i + "y"));
+        }
+
+        // The table of looked up literals grows beyond its initial size and is emptied on reset
+        final SearchableString value = domain.getSearchableString("x12y x345y");
+        for (int i = 0; i < literals.size(); i++) {
+            assertEquals(i == 12 || i == 345, value.contains(literals.get(i)), literals.get(i).toString());
+        }
+        assertArrayEquals(new int[]{5}, value.getIndices(literals.get(345)));
+
+        value.reset("x345y x999y");
+        for (int i = literals.size() - 1; i >= 0; i--) {
+            assertEquals(i == 345 || i == 999, value.contains(literals.get(i)), literals.get(i).toString());
+        }
+        assertArrayEquals(new int[]{0}, value.getIndices(literals.get(345)));
+        assertEquals(6, value.indexOf(literals.get(999), 0));
+    }
+
+    @Test
+    void testAutomaton() {
+        final LiteralDomain domain = new LiteralDomain();
+        final List<Literal> literals = asList(domain.createLiteral("he"), domain.createLiteral("she"),
+                domain.createLiteral("his"), domain.createLiteral("hers"), domain.createLiteral("h?s"));
+
+        final LiteralAutomaton automaton = new LiteralAutomaton(literals);
+        assertTrue(automaton.contains(literals.get(0)));
+        assertFalse(automaton.contains(literals.get(4)));
+
+        final List<String> found = new ArrayList<>();
+        final byte[] bytes = "ushers".getBytes(ISO_8859_1);
+        automaton.scan(bytes, bytes.length, (literal, start) -> found.add(literals.get(literal) + "@" + start));
+        assertEquals(asList("she@1", "he@2", "hers@2"), found);
+    }
+
+    @Test
+    void testPrefixesAndIndices() {
+        final LiteralDomain domain = new LiteralDomain();
+        final List<Literal> literals = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            literals.add(domain.createLiteral("a" + i));
+        }
+        final Literal a1 = literals.get(1);
+
+        // The prefix and postfix flags and the indices of a literal are kept in the same entry
+        final SearchableString value = domain.getSearchableString("a1xa1");
+        assertTrue(value.startsWith(a1));
+        assertTrue(value.endsWith(a1));
+        assertArrayEquals(new int[]{0, 3}, value.getIndices(a1));
+        assertTrue(value.startsWith(a1));
+
+        // The entries survive growing the table, and are discarded by a reset
+        for (final Literal literal : literals) {
+            assertEquals(literal == a1, value.startsWith(literal));
+        }
+        assertArrayEquals(new int[]{0, 3}, value.getIndices(a1));
+        assertTrue(value.endsWith(a1));
+        value.reset("xa1");
+        assertFalse(value.startsWith(a1));
+        assertTrue(value.endsWith(a1));
+        assertArrayEquals(new int[]{1}, value.getIndices(a1));
     }
 
     @Test
@@ -95,7 +254,7 @@ class SearchableStringTest {
         final Literal literal = domain.createLiteral(input);
 
         // Test for matches also with invalid bounds
-        final char[] search = "abcdef".toCharArray();
+        final byte[] search = "abcdef".getBytes(ISO_8859_1);
         assertTrue(literal.matches(search, 3));
         assertFalse(literal.matches(search, 0));
         assertFalse(literal.matches(search, 5));
@@ -107,4 +266,52 @@ class SearchableStringTest {
         assertFalse(literal.matches(search, 0));
         assertFalse(literal.matches(search, 5));
     }
+
+    @Test
+    void testQuestionMarks() {
+        final LiteralDomain domain = new LiteralDomain();
+
+        final Literal android = domain.createLiteral("?android?4.0");
+        assertEquals(1, android.getAnchor());
+        assertEquals(7, android.getAnchorLength());
+        final Literal any = domain.createLiteral("??");
+        assertEquals(0, any.getAnchorLength());
+
+        // Positions are found by the longest part without question marks
+        final SearchableString value = domain.getSearchableString("(android 4.0; android-4.0)");
+        assertArrayEquals(new int[]{0, 13}, value.getIndices(android));
+        assertArrayEquals(new int[]{0, 2}, domain.getSearchableString("abababc").getIndices(
+                domain.createLiteral("a?a?")));
+        assertArrayEquals(new int[]{0, 1, 2}, domain.getSearchableString("abcd").getIndices(any));
+        assertArrayEquals(new int[0], domain.getSearchableString("a").getIndices(any));
+
+        // The automaton finds the fixed part if it's a literal itself, and only those positions are verified
+        final Literal fixed = domain.createLiteral("android");
+        final List<Literal> others = new ArrayList<>();
+        for (int i = 0; i <= SearchableString.LAZY_LOOKUPS; i++) {
+            others.add(domain.createLiteral("x" + i));
+        }
+        domain.compile();
+        assertSame(fixed, domain.getAutomaton().getAnchor(android));
+        assertNull(domain.getAutomaton().getAnchor(any));
+        final SearchableString compiled = domain.getSearchableString("(android 4.0; android-4.0) android?4.0");
+        assertArrayEquals(new int[]{0, 13, 26}, compiled.getIndices(android));
+        assertArrayEquals(new int[]{1, 14, 27}, compiled.getIndices(fixed));
+
+        // Also when the fixed part was found by the single pass
+        compiled.reset("android?4.0 android_4.0_x1");
+        for (final Literal other : others) {
+            compiled.contains(other);
+        }
+        assertEquals(2, compiled.getNrOfFoundLiterals());
+        assertArrayEquals(new int[]{11}, compiled.getIndices(android));
+
+        // A question mark in the literal may match any character, so it only requires a question mark
+        assertTrue(android.requires("android"));
+        assertTrue(android.requires("d?4"));
+        assertTrue(android.requires("??"));
+        assertFalse(android.requires("d 4"));
+        assertFalse(android.requires("?android?4.0?"));
+        assertTrue(domain.createLiteral("android 4.0").requires("d?4"));
+    }
 }
@@ -0,0 +1,59 @@
+package com.blueconic.browscap.impl;
+
+import static com.blueconic.browscap.BrowsCapField.BROWSER;
+import static com.blueconic.browscap.impl.UserAgentFileParserTest.DEFAULT;
+import static com.blueconic.browscap.impl.UserAgentFileParserTest.getCapabilities;
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.util.Collections.singleton;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import com.blueconic.browscap.ParserOptions;
+import com.blueconic.browscap.ParserOptions.Engine;
+import org.junit.jupiter.api.Test;
+
+class SkeletonCacheTest {
+
+    @Test
+    void testSkeleton() {
+        final LiteralDomain domain = new LiteralDomain();
+        final SearchableString value = domain.getSearchableString("chrome/120.0.6099.109 x64");
+        assertEquals("chrome/0.0.0.0 x0", new String(SkeletonCache.getSkeleton(value), ISO_8859_1));
+        final SearchableString other = domain.getSearchableString("chrome/99.1.2.3 x86");
+        assertEquals(SkeletonCache.getHash(value), SkeletonCache.getHash(other));
+
+        final SkeletonCache cache = new SkeletonCache(4);
+        final int hash = SkeletonCache.getHash(value);
+        assertEquals(-1, cache.get(value, hash));
+        cache.put(value, hash, 7);
+        assertEquals(7, cache.get(value, hash));
+        assertEquals(7, cache.get(other, hash));
+
+        // Skeletons which only share the hash or a prefix don't match
+        assertEquals(-1, cache.get(domain.getSearchableString("chrome/"), hash));
+        assertEquals(-1, cache.get(domain.getSearchableString("chrome/1.2.3.4 x64 y"), hash));
+        assertEquals(-1, cache.get(domain.getSearchableString("chrome/1.2.3 x64"), hash));
+    }
+
+    @Test
+    void testHints() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(BROWSER));
+        final Rule[] rules = {parser.createRule("my app/1.*", getCapabilities(parser, "One")),
+                parser.createRule("my app/*", getCapabilities(parser, "Any")),
+                parser.createRule("abc 1*", getCapabilities(parser, "Abc one")), parser.createRule("abc*", DEFAULT)};
+
+        for (final Engine engine : Engine.values()) {
+            final UserAgentParserImpl userAgentParser = new UserAgentParserImpl(rules, parser.getDomain(), DEFAULT,
+                    new ParserOptions().setEngine(engine).setSkeletonCacheSize(16));
+
+            // A rule with a higher priority than the remembered one still matches first
+            assertEquals("Any", userAgentParser.parse("my app/2.0").getBrowser());
+            assertEquals("One", userAgentParser.parse("my app/1.0").getBrowser());
+            assertEquals("Any", userAgentParser.parse("my app/3.0").getBrowser());
+
+            // A remembered rule which doesn't match leads to a full search
+            assertEquals("Abc one", userAgentParser.parse("abc 12").getBrowser());
+            assertSame(DEFAULT, userAgentParser.parse("abc 22"));
+        }
+    }
+}
@@ -1,19 +1,36 @@
 package com.blueconic.browscap.impl;
 
 import static com.blueconic.browscap.BrowsCapField.BROWSER;
+import static com.blueconic.browscap.BrowsCapField.DEVICE_TYPE;
+import static com.blueconic.browscap.BrowsCapField.PLATFORM_MAKER;
+import static com.blueconic.browscap.BrowsCapField.RENDERING_ENGINE_NAME;
 import static com.blueconic.browscap.impl.UserAgentFileParser.getParts;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptySet;
 import static java.util.Collections.singleton;
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.EnumMap;
+import java.util.Map;
+
+import com.blueconic.browscap.BrowsCapField;
 import com.blueconic.browscap.Capabilities;
+import com.blueconic.browscap.ParseException;
 import org.junit.jupiter.api.Test;
 
 class UserAgentFileParserTest {
 
     static final Capabilities DEFAULT = new UserAgentFileParser(singleton(BROWSER)).getDefaultCapabilities();
 
+    // Returns the capabilities of the parser with only the specified browser, shared by the rules created with them
+    static Capabilities getCapabilities(final UserAgentFileParser parser, final String browser) {
+        final Map<BrowsCapField, String> values = new EnumMap<>(BrowsCapField.class);
+        values.put(BROWSER, browser);
+        return parser.getCapabilities(values);
+    }
+
     @Test
     void testGetParts() {
         assertEquals(asList("*", "a", "*"), getParts("*a*"));
@@ -93,4 +110,74 @@ class UserAgentFileParserTest {
         assertSame("Test", parser.getValue(input + " "));
         assertSame("Test", parser.getValue(" " + input));
     }
-}
\ No newline at end of file
+
+    @Test
+    void testCapabilitiesValues() {
+        final UserAgentFileParser parser = new UserAgentFileParser(singleton(RENDERING_ENGINE_NAME));
+        final Map<BrowsCapField, String> values = new EnumMap<>(BrowsCapField.class);
+        values.put(BROWSER, "Chrome");
+        values.put(RENDERING_ENGINE_NAME, "Blink");
+        final Capabilities capabilities = parser.getCapabilities(values);
+
+        // Fields which aren't loaded don't have a value, and the map of all values is shared
+        assertEquals("Chrome", capabilities.getBrowser());
+        assertEquals("Blink", capabilities.getValue(RENDERING_ENGINE_NAME));
+        assertNull(capabilities.getValue(PLATFORM_MAKER));
+        assertEquals(7, capabilities.getValues().size());
+        assertEquals("Unknown", capabilities.getValues().get(DEVICE_TYPE));
+        assertSame(capabilities.getValues(), capabilities.getValues());
+        assertThrows(UnsupportedOperationException.class, () -> capabilities.getValues().put(BROWSER, "Other"));
+    }
+
+    @Test
+    void testParseRows() throws IOException, ParseException {
+        final String[] columns = new String[51];
+        columns[0] = "\"Mozilla/5.0*\"";
+        columns[BROWSER.getIndex()] = "\"Firefox\"";
+        columns[DEVICE_TYPE.getIndex()] = "\"\"";
+        columns[RENDERING_ENGINE_NAME.getIndex()] = "\"Gecko\"";
+        final String csv = "\"GJK_Browscap_Version\",\"GJK_Browscap_Version\"\n\"6001008\",\"Wed\"\n"
+                + String.join(",", asList(columns)).replace("null", "") + "\n";
+
+        // The rows with the version are skipped, and only the columns of the fields are read
+        final UserAgentFileParser parser = new UserAgentFileParser(asList(BROWSER, DEVICE_TYPE));
+        final Rule[] rules = parser.parseRules(new StringReader(csv), 1);
+        assertEquals(1, rules.length);
+        assertEquals("mozilla/5.0*", rules[0].getPattern());
+        assertEquals("Firefox", rules[0].getCapabilities().getBrowser());
+        assertEquals("Unknown", rules[0].getCapabilities().getDeviceType());
+        assertNull(rules[0].getCapabilities().getValue(RENDERING_ENGINE_NAME));
+    }
+
+    @Test
+    void testParseInParallel() throws IOException, ParseException {
+
+        // Rows with some shared literals, spanning multiple batches
+        final StringBuilder csv = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            final String[] columns = new String[48];
+            columns[0] = "\"Mozilla/" + i % 7 + ".0 (*" + i % 101 + "*) App/" + i + "*\"";
+            columns[BROWSER.getIndex()] = "\"App " + i % 13 + "\"";
+            columns[DEVICE_TYPE.getIndex()] = "\"Device\n" + i % 3 + "\"";
+            csv.append(String.join(",", asList(columns)).replace("null", "")).append('\n');
+        }
+
+        final UserAgentFileParser sequentialParser = new UserAgentFileParser(asList(BROWSER, DEVICE_TYPE));
+        final UserAgentFileParser parallelParser = new UserAgentFileParser(asList(BROWSER, DEVICE_TYPE));
+        final Rule[] sequential = sequentialParser.parseRules(new StringReader(csv.toString()), 1);
+        final Rule[] parallel = parallelParser.parseRules(new StringReader(csv.toString()), 4);
+
+        // The rules and the indices of their literals are the same
+        assertEquals(20_000, sequential.length);
+        assertEquals(sequential.length, parallel.length);
+        for (int i = 0; i < sequential.length; i++) {
+            assertEquals(sequential[i].getPattern(), parallel[i].getPattern());
+            assertEquals(sequential[i].getCapabilities().getValues(), parallel[i].getCapabilities().getValues());
+            final Literal[] literals = sequential[i].getLiterals();
+            final Literal[] parallelLiterals = parallel[i].getLiterals();
+            for (int j = 0; j < literals.length; j++) {
+                assertEquals(literals[j].getIndex(), parallelLiterals[j].getIndex());
+            }
+        }
+    }
+}
@@ -10,20 +10,32 @@ package com.blueconic.browscap.impl;
 
 import static com.blueconic.browscap.BrowsCapField.BROWSER;
 import static com.blueconic.browscap.impl.UserAgentFileParserTest.DEFAULT;
+import static com.blueconic.browscap.impl.UserAgentFileParserTest.getCapabilities;
 import static com.blueconic.browscap.impl.UserAgentParserImpl.getOrderedRules;
 import static java.util.Collections.singleton;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.BitSet;
+import java.util.function.IntConsumer;
 
+import com.blueconic.browscap.Capabilities;
+import com.blueconic.browscap.ParserOptions;
+import com.blueconic.browscap.ParserOptions.Engine;
 import com.blueconic.browscap.impl.UserAgentParserImpl.Filter;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import com.sun.management.ThreadMXBean;
+
 class UserAgentParserTest {
 
     private UserAgentFileParser myParser;
@@ -81,7 +93,7 @@ class UserAgentParserTest {
         final Filter[] filters = {startsWithTest, containsTest, containsNumbers};
 
         final SearchableString useragent = domain.getSearchableString("useragent_test_string");
-        final BitSet includeRules = parser.getIncludeRules(useragent, Arrays.asList(filters));
+        final MutableRuleBitmap includeRules = parser.getIncludeRules(useragent, Arrays.asList(filters));
 
         // b should be checked
         assertEquals(1, includeRules.nextSetBit(0));
@@ -89,7 +101,7 @@ class UserAgentParserTest {
         assertEquals(-1, includeRules.nextSetBit(2));
 
         final SearchableString numberString = domain.getSearchableString("123456");
-        final BitSet numberIncludes = parser.getIncludeRules(numberString, Arrays.asList(filters));
+        final MutableRuleBitmap numberIncludes = parser.getIncludeRules(numberString, Arrays.asList(filters));
 
         // Only d should be checked
         assertEquals(3, numberIncludes.nextSetBit(0));
@@ -97,6 +109,132 @@ class UserAgentParserTest {
         assertEquals(-1, numberIncludes.nextSetBit(4));
     }
 
+    @Test
+    void testIndexEngine() {
+        final Rule a = getRule("test*123*abc*");
+        final Rule b = getRule("*test*abcd*");
+        final Rule c = getRule("*123*test");
+        final Rule d = getRule("*1?3*");
+        final Rule e = getRule("*");
+        final Rule[] rules = {a, b, c, d, e};
+
+        final ParserOptions options = new ParserOptions().setEngine(Engine.INDEX);
+        final UserAgentParserImpl parser = new UserAgentParserImpl(rules, myParser.getDomain(), DEFAULT, options);
+        final UserAgentParserImpl filterParser = new UserAgentParserImpl(rules, myParser.getDomain(), DEFAULT);
+
+        for (final String useragent : new String[]{"test_123_abc", "x_test_abcd_123", "123_test", "1x3", "none"}) {
+            assertSame(filterParser.parse(useragent), parser.parse(useragent), useragent);
+        }
+    }
+
+    @Test
+    void testReuseContexts() {
+        final Rule[] rules = {getRule("test*123*abc*"), getRule("*test*abcd*"), getRule("*123*test"),
+                getRule("*1?3*"), getRule("mozilla/5.0 (*) bot"), getRule("*\u0436*"), getRule("*")};
+        final String[] useragents = {"Test_123_ABC", "x_test_abcd_123", "123_Test", "1x3", "Mozilla/5.0 (X) Bot",
+                "none", "x\u0436x", "y\u0434"};
+
+        for (final Engine engine : Engine.values()) {
+            final ParserOptions options =
+                    new ParserOptions().setEngine(engine).setReuseContexts(true).setSkeletonCacheSize(64);
+            final UserAgentParserImpl parser = new UserAgentParserImpl(rules, myParser.getDomain(), DEFAULT, options);
+            final UserAgentParserImpl otherParser = new UserAgentParserImpl(rules, myParser.getDomain(), DEFAULT,
+                    new ParserOptions().setEngine(engine));
+
+            // Reusing the state gives the same results, and doesn't allocate once the buffers have grown, also when
+            // looking up the skeletons
+            for (int i = 0; i < 1000; i++) {
+                for (final String useragent : useragents) {
+                    assertSame(otherParser.parse(useragent), parser.parse(useragent), useragent);
+                }
+            }
+
+            // The loop without parsing is the baseline, as reading the counter may allocate as well
+            final long overhead = getAllocatedBytes(i -> useragents[i % useragents.length].length());
+            final long allocated = getAllocatedBytes(i -> parser.parse(useragents[i % useragents.length]));
+            assertEquals(0, allocated - overhead, engine.name());
+        }
+    }
+
+    // Returns the number of bytes allocated by this thread while running the action for 0 up to 1000
+    private static long getAllocatedBytes(final IntConsumer action) {
+        final java.lang.management.ThreadMXBean platformBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(platformBean instanceof ThreadMXBean
+                && ((ThreadMXBean) platformBean).isThreadAllocatedMemorySupported());
+        final ThreadMXBean bean = (ThreadMXBean) platformBean;
+        bean.setThreadAllocatedMemoryEnabled(true);
+
+        final long threadId = Thread.currentThread().getId();
+        final long before = bean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 1000; i++) {
+            action.accept(i);
+        }
+        return bean.getThreadAllocatedBytes(threadId) - before;
+    }
+
+    @Test
+    void testParseWithoutString() {
+        final String[] patterns = {"test*123*abc*", "*test*abcd*", "*123*test", "*1?3*", "*"};
+        final Rule[] rules = new Rule[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            rules[i] = myParser.createRule(patterns[i], getCapabilities(myParser, patterns[i]));
+        }
+        final UserAgentParserImpl parser = new UserAgentParserImpl(rules, myParser.getDomain(), DEFAULT);
+
+        // Character sequences and encoded bytes give the same results as strings
+        for (final String useragent : new String[]{"Test_123_ABC", "x_test_abcd_123", "123_Test", "1x3", ""}) {
+            final byte[] buffer = ("[" + useragent + "]").getBytes(StandardCharsets.ISO_8859_1);
+            assertSame(parser.parse(useragent), parser.parse(new StringBuilder(useragent)), useragent);
+            assertSame(parser.parse(useragent), parser.parse(buffer, 1, useragent.length()), useragent);
+        }
+
+        // Invalid ranges are rejected like when decoding the bytes
+        final byte[] buffer = "1x3".getBytes(StandardCharsets.ISO_8859_1);
+        assertThrows(IndexOutOfBoundsException.class, () -> parser.parse(buffer, 0, -1));
+        assertThrows(IndexOutOfBoundsException.class, () -> parser.parse(buffer, -1, 2));
+        assertThrows(IndexOutOfBoundsException.class, () -> parser.parse(buffer, 2, 2));
+        assertThrows(NullPointerException.class, () -> parser.parse(null, 0, 0));
+    }
+
+    @Test
+    void testIds() {
+        final Capabilities test = getCapabilities(myParser, "Test");
+        final Capabilities bot = getCapabilities(myParser, "Bot");
+        final Rule[] rules = {myParser.createRule("*test*", test), myParser.createRule("*bot*", bot),
+                myParser.createRule("*tester*", test)};
+
+        // The default capabilities get the id after the ones of the rules
+        final UserAgentParserImpl parser = new UserAgentParserImpl(rules, myParser.getDomain(), DEFAULT);
+        assertEquals(3, parser.getNrOfCapabilities());
+        for (final String useragent : new String[]{"a tester", "a bot", "test bot", "none", ""}) {
+            final int id = parser.parseToId(useragent);
+            assertSame(parser.parse(useragent), parser.byId(id), useragent);
+        }
+        assertEquals(2, parser.parseToId("none"));
+        assertThrows(IllegalArgumentException.class, () -> parser.byId(3));
+    }
+
+    @Test
+    void testCharactersBeyondLatin1() {
+        // Different characters beyond Latin-1 have the same byte, which shouldn't make the rules match other characters
+        final Rule[] rules = getOrderedRules(new Rule[]{
+                myParser.createRule("*\u0436*", getCapabilities(myParser, "Zhe")),
+                myParser.createRule("xx\u0436x", getCapabilities(myParser, "Exact")),
+                myParser.createRule("a?", getCapabilities(myParser, "Any"))});
+        final String none = DEFAULT.getBrowser();
+        for (final Engine engine : Engine.values()) {
+            final ParserOptions options = new ParserOptions().setEngine(engine);
+            final UserAgentParserImpl parser = new UserAgentParserImpl(rules, myParser.getDomain(), DEFAULT, options);
+            final String[][] expected = {{"\u0436", "Zhe"}, {"\u0434", none}, {"\u001A", none},
+                    {"xx\u0436x", "Exact"}, {"xx\u0434x", none}, {"xx\u001Ax", none}, {"xx\u0436x", "Exact"},
+                    {"a\u0434", "Any"}, {"a\u001A", "Any"}, {"-\u0434\u0436-", "Zhe"}};
+            for (final String[] userAgent : expected) {
+                assertEquals(userAgent[1], parser.parse(userAgent[0]).getBrowser(), engine + " " + userAgent[0]);
+            }
+            assertEquals(none, parser.parse(new byte[]{'x', 'x', 0x1A, 'x'}, 0, 4).getBrowser());
+        }
+    }
+
     @Test
     void testGetOrderedRules() {
         final Rule a = getRule("a");
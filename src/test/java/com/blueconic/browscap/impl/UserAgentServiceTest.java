@@ -11,22 +11,30 @@ import static com.blueconic.browscap.BrowsCapField.RENDERING_ENGINE_MAKER;
 import static com.blueconic.browscap.BrowsCapField.RENDERING_ENGINE_NAME;
 import static com.blueconic.browscap.BrowsCapField.RENDERING_ENGINE_VERSION;
 import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toSet;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collection;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.jupiter.api.Test;
 
 import com.blueconic.browscap.BrowsCapField;
 import com.blueconic.browscap.Capabilities;
 import com.blueconic.browscap.ParseException;
+import com.blueconic.browscap.ParserOptions;
+import com.blueconic.browscap.ParserOptions.Engine;
 import com.blueconic.browscap.UserAgentParser;
 import com.blueconic.browscap.UserAgentService;
 
@@ -69,7 +77,9 @@ class UserAgentServiceTest {
     void testUserAgentsFromBundledFile() throws IOException, ParseException {
         final int ITERATIONS = 10;
 
-        final UserAgentService uas = new UserAgentService();
+        // The bundled CSV file is passed explicitly, as the service without a file loads the snapshot of it
+        final UserAgentService uas = new UserAgentService(
+                getClass().getClassLoader().getResourceAsStream(UserAgentService.getBundledCsvFileName()));
         final UserAgentParser parser = uas.loadParser();
 
         int counter = 0;
@@ -79,6 +89,53 @@ class UserAgentServiceTest {
         System.out.print("Processed " + counter + " items\n");
     }
 
+    @Test
+    void testBundledSnapshot() throws IOException, ParseException {
+        // The build writes the snapshot of the default fields, so loading the bundled file doesn't parse the CSV file
+        final Set<BrowsCapField> defaultFields =
+                Stream.of(BrowsCapField.values()).filter(BrowsCapField::isDefault).collect(toSet());
+        final ByteBuffer snapshot = readResource(UserAgentService.getBundledSnapshotFileName());
+        assertEquals(defaultFields, UserAgentFileParser.getSnapshotFields(snapshot));
+
+        // The capabilities are the same as the ones of the CSV file
+        final Path path = Paths.get("src", "main", "resources", UserAgentService.getBundledCsvFileName());
+        final UserAgentParser csvParser = new UserAgentService(path.toString()).loadParser();
+        final UserAgentParser parser = new UserAgentService().loadParser();
+        assertEquals(csvParser.getNrOfCapabilities(), parser.getNrOfCapabilities());
+        int counter = 0;
+        for (final String resource : asList("useragents.txt", "useragents_2.txt")) {
+            final BufferedReader in = new BufferedReader(
+                    new InputStreamReader(getClass().getClassLoader().getResourceAsStream(resource)));
+            String line;
+            while ((line = in.readLine()) != null) {
+                final String[] properties = line.split("    ");
+                final String userAgent = properties[properties.length - 1];
+                assertEquals(csvParser.parse(userAgent).getValues(), parser.parse(userAgent).getValues(), userAgent);
+                counter++;
+            }
+        }
+        System.out.print("Compared " + counter + " items\n");
+    }
+
+    private ByteBuffer readResource(final String name) throws IOException, ParseException {
+        try (final InputStream input = getClass().getClassLoader().getResourceAsStream(name)) {
+            assertNotNull(input, name);
+            return UserAgentFileParser.readSnapshot(new GZIPInputStream(input));
+        }
+    }
+
+    @Test
+    void testUserAgentsWithIndexEngine() throws IOException, ParseException {
+        final Collection<BrowsCapField> fields =
+                asList(BROWSER, BROWSER_TYPE, BROWSER_MAJOR_VERSION, DEVICE_TYPE, PLATFORM, PLATFORM_VERSION);
+
+        final UserAgentService uas = new UserAgentService();
+        final UserAgentParser parser = uas.loadParser(fields, new ParserOptions().setEngine(Engine.INDEX));
+
+        final int counter = processUserAgentFile(parser);
+        System.out.print("Processed " + counter + " items\n");
+    }
+
     private int processUserAgentFile(final UserAgentParser parser) throws IOException {
         final InputStream resourceAsStream = getClass().getClassLoader().getResourceAsStream("useragents.txt");
 